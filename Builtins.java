@@ -0,0 +1,597 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.LongPredicate;
+import java.util.regex.PatternSyntaxException;
+
+/*
+ * The shell's own commands. Each one validates its arguments and hands off to
+ * the matching Terminal method. CommandRegistry loads them by name.
+ */
+final class Builtins {
+    private Builtins() {
+    }
+
+    // A command taking between min and max arguments
+    abstract static class Builtin implements ShellCommand {
+        private final String name;
+        private final int min;
+        private final int max;
+        private final String description;
+        private final String usage;
+
+        Builtin(String name, int min, int max, String description, String usage) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.description = description;
+            this.usage = usage;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public boolean accepts(String[] args, boolean piped) {
+            return args.length >= min && args.length <= max;
+        }
+
+        public String description() {
+            return description;
+        }
+
+        public String usage() {
+            return usage;
+        }
+
+        static Terminal.Execution invalid() {
+            Terminal.Execution exec = new Terminal.Execution();
+            exec.exit_code = Terminal.Execution.ExitCode.INVALID_ARGUMENTS;
+            return exec;
+        }
+    };
+
+    static final class Cd extends Builtin {
+        Cd() {
+            super("cd", 0, 1, "is used to change the current directory.", "arg1 : SourcePath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.cd(args.length == 0 ? Terminal._home : args[0]);
+        }
+    };
+
+    static final class Ls extends Builtin {
+        Ls() {
+            super("ls", 0, Integer.MAX_VALUE, "is used to list information about the files in the current directory.",
+                    "flags : -l long listing, -s sort by name, arg1 : SourcePath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean longFormat = false, sorted = false;
+            String path = null;
+            for (String arg : args) {
+                if (arg.startsWith("-") && arg.length() > 1) {
+                    for (char flag : arg.substring(1).toCharArray()) {
+                        if (flag == 'l')
+                            longFormat = true;
+                        else if (flag == 's')
+                            sorted = true;
+                        else
+                            return invalid();
+                    }
+                } else if (path == null) {
+                    path = arg;
+                } else {
+                    return invalid();
+                }
+            }
+            return term.ls(path == null ? term.getCurrentDir() : path, longFormat, sorted, stdout);
+        }
+    };
+
+    static final class Cp extends Builtin {
+        Cp() {
+            super("cp", 2, Integer.MAX_VALUE, "is used to copy source to destination, or multiple sources to directory.",
+                    "flags : -r copy directories, -j N copies at once, -u skip unchanged files, -c also update large files by"
+                            + " changed blocks, arg1 .. argn-1 : SourcePaths, argn : DestinationPath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean recursive = false, sync = false, blocks = false;
+            int jobs = Math.max(4, Runtime.getRuntime().availableProcessors());
+            int i = 0;
+            for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; ++i) {
+                if (args[i].equals("-r") || args[i].equals("-R")) {
+                    recursive = true;
+                } else if (args[i].equals("-u")) {
+                    sync = true;
+                } else if (args[i].equals("-c")) {
+                    blocks = true;
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    try {
+                        jobs = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        return invalid();
+                    }
+                    if (jobs < 1)
+                        return invalid();
+                } else {
+                    return invalid();
+                }
+            }
+            if (args.length - i < 2)
+                return invalid();
+            return term.cp(Arrays.copyOfRange(args, i, args.length - 1), args[args.length - 1], recursive, jobs, sync,
+                    blocks, stdout);
+        }
+    };
+
+    static final class Cat extends Builtin {
+        Cat() {
+            super("cat", 0, Integer.MAX_VALUE, "is used to concatenate files and print on the standard output.",
+                    "can have 0 or n arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.cat(args, stdin, stdout);
+        }
+    };
+
+    static final class Grep extends Builtin {
+        Grep() {
+            super("grep", 1, Integer.MAX_VALUE, "prints lines of files or standard input matching a pattern.",
+                    "flags : -c count matches, -l names of matching files, -F fixed string, arg1 : Pattern, arg2 .. argn : files.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            TextSearch.Mode mode = TextSearch.Mode.LINES;
+            boolean fixed = false;
+            int i = 0;
+            for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; ++i) {
+                for (char flag : args[i].substring(1).toCharArray()) {
+                    if (flag == 'c')
+                        mode = TextSearch.Mode.COUNT;
+                    else if (flag == 'l')
+                        mode = TextSearch.Mode.NAMES;
+                    else if (flag == 'F')
+                        fixed = true;
+                    else
+                        return invalid();
+                }
+            }
+            if (i == args.length || (i == args.length - 1 && stdin == null))
+                return invalid();
+            TextSearch search;
+            try {
+                search = new TextSearch(args[i], fixed, mode);
+            } catch (PatternSyntaxException e) {
+                Terminal.Execution exec = new Terminal.Execution();
+                exec.exit_code = Terminal.Execution.ExitCode.SYNTAX_ERROR;
+                exec.output = e.getDescription() + "\n";
+                return exec;
+            }
+            return term.grep(search, Arrays.copyOfRange(args, i + 1, args.length), stdin, stdout);
+        }
+    };
+
+    static final class Sort extends Builtin {
+        Sort() {
+            super("sort", 0, Integer.MAX_VALUE, "sorts lines of files or standard input, spilling to disk past its memory budget.",
+                    "flags : -n numeric, -r reverse, -u unique, -k Field, -S Budget[k|M|G], arg1 .. argn : files.");
+        }
+
+        @Override
+        public boolean accepts(String[] args, boolean piped) {
+            return piped || args.length > 0;
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean numeric = false, reverse = false, unique = false;
+            int field = 0;
+            long budget = Runtime.getRuntime().maxMemory() / 4;
+            ArrayList<String> files = new ArrayList<String>();
+            try {
+                for (int i = 0; i < args.length; ++i) {
+                    String arg = args[i];
+                    if (arg.equals("-k") || arg.equals("-S")) {
+                        if (++i == args.length)
+                            return invalid();
+                        if (arg.equals("-k"))
+                            field = Integer.parseInt(args[i]);
+                        else
+                            budget = bytes(args[i]);
+                    } else if (arg.startsWith("-") && arg.length() > 1) {
+                        for (char flag : arg.substring(1).toCharArray()) {
+                            if (flag == 'n')
+                                numeric = true;
+                            else if (flag == 'r')
+                                reverse = true;
+                            else if (flag == 'u')
+                                unique = true;
+                            else
+                                return invalid();
+                        }
+                    } else {
+                        files.add(arg);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return invalid();
+            }
+            if (field < 0 || budget <= 0 || (files.isEmpty() && stdin == null))
+                return invalid();
+            return term.sort(new ExternalSort(numeric, reverse, unique, field, budget), files.toArray(new String[0]),
+                    stdin, stdout);
+        }
+
+        // "64M" and the like
+        private static long bytes(String value) {
+            long unit = 1;
+            switch (value.charAt(value.length() - 1)) {
+            case 'k':
+                unit = 1L << 10;
+                break;
+            case 'M':
+                unit = 1L << 20;
+                break;
+            case 'G':
+                unit = 1L << 30;
+                break;
+            }
+            return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+        }
+    };
+
+    static final class More extends Builtin {
+        More() {
+            super("more", 0, Integer.MAX_VALUE, "is used to view file or standard input one screenful at a time.",
+                    "arg1 : files, arg2 : stdin. At a page: Enter next, b back, N line N, N% percent, q quit.");
+        }
+
+        @Override
+        public boolean accepts(String[] args, boolean piped) {
+            return piped || args.length > 0;
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.more(args, stdin, stdout);
+        }
+    };
+
+    static final class Mkdir extends Builtin {
+        Mkdir() {
+            super("mkdir", 1, 1, "allows the user to create directories.", "arg1 : DestinationPath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.mkdir(args[0]);
+        }
+    };
+
+    static final class Rmdir extends Builtin {
+        Rmdir() {
+            super("rmdir", 1, 3, "removes the directory if it is empty.",
+                    "flags : -p also remove empty parents, -r remove contents too, or both as -pr, arg1 : SourcePath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean parents = false, recursive = false;
+            for (int i = 0; i < args.length - 1; ++i) {
+                if (!args[i].startsWith("-") || args[i].length() == 1)
+                    return invalid();
+                for (char flag : args[i].substring(1).toCharArray()) {
+                    if (flag == 'p')
+                        parents = true;
+                    else if (flag == 'r')
+                        recursive = true;
+                    else
+                        return invalid();
+                }
+            }
+            return term.rmdir(args[args.length - 1], parents, recursive);
+        }
+    };
+
+    static final class Mv extends Builtin {
+        Mv() {
+            super("mv", 2, 2, "used to move or rename files.", "arg1 : SourcePath, arg2 : DestinationPath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.mv(args[0], args[1]);
+        }
+    };
+
+    static final class Rm extends Builtin {
+        Rm() {
+            super("rm", 1, Integer.MAX_VALUE, "removes files or directories.",
+                    "flags : -r remove directories and their contents, arg1 .. argn : SourcePaths.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean recursive = args[0].equals("-r") || args[0].equals("-R");
+            if (recursive && args.length == 1)
+                return invalid();
+            return term.rm(Arrays.copyOfRange(args, recursive ? 1 : 0, args.length), recursive);
+        }
+    };
+
+    static final class Find extends Builtin {
+        Find() {
+            super("find", 0, Integer.MAX_VALUE, "searches a directory tree in parallel for matching paths.",
+                    "arg1 : SourcePath, then any of -name Glob, -type f|d|l, -size [+|-]N[k|M|G], -mtime [+|-]Days, -maxdepth N, -follow.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            String root = ".";
+            int i = 0;
+            if (args.length > 0 && !args[0].startsWith("-"))
+                root = args[i++];
+            BiPredicate<Path, BasicFileAttributes> filter = (path, attrs) -> true;
+            int maxDepth = Integer.MAX_VALUE;
+            boolean follow = false;
+            try {
+                for (; i < args.length; ++i) {
+                    String option = args[i];
+                    if (option.equals("-follow")) {
+                        follow = true;
+                        continue;
+                    }
+                    if (i + 1 == args.length)
+                        return invalid();
+                    String value = args[++i];
+                    switch (option) {
+                    case "-name": {
+                        final PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                        filter = filter.and((path, attrs) -> glob.matches(path.getFileName()));
+                        break;
+                    }
+                    case "-type":
+                        if (value.equals("f"))
+                            filter = filter.and((path, attrs) -> attrs.isRegularFile());
+                        else if (value.equals("d"))
+                            filter = filter.and((path, attrs) -> attrs.isDirectory());
+                        else if (value.equals("l"))
+                            filter = filter.and((path, attrs) -> attrs.isSymbolicLink());
+                        else
+                            return invalid();
+                        break;
+                    case "-size": {
+                        final LongPredicate size = compare(value, true);
+                        filter = filter.and((path, attrs) -> size.test(attrs.size()));
+                        break;
+                    }
+                    case "-mtime": {
+                        final LongPredicate days = compare(value, false);
+                        final long now = System.currentTimeMillis();
+                        filter = filter.and((path, attrs) -> days
+                                .test((now - attrs.lastModifiedTime().toMillis()) / TimeUnit.DAYS.toMillis(1)));
+                        break;
+                    }
+                    case "-maxdepth":
+                        maxDepth = Integer.parseInt(value);
+                        break;
+                    default:
+                        return invalid();
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return invalid();
+            }
+            return term.find(root, filter, maxDepth, follow, stdout);
+        }
+
+        // "+N" means more than N, "-N" less than N, "N" exactly N; sizes may end in k, M or G
+        private static LongPredicate compare(String value, boolean size) {
+            int sign = value.startsWith("+") ? 1 : value.startsWith("-") ? -1 : 0;
+            String number = sign == 0 ? value : value.substring(1);
+            long unit = 1;
+            if (size && !number.isEmpty()) {
+                switch (number.charAt(number.length() - 1)) {
+                case 'k':
+                    unit = 1L << 10;
+                    break;
+                case 'M':
+                    unit = 1L << 20;
+                    break;
+                case 'G':
+                    unit = 1L << 30;
+                    break;
+                }
+                if (unit != 1)
+                    number = number.substring(0, number.length() - 1);
+            }
+            final long n = Long.parseLong(number) * unit;
+            if (sign > 0)
+                return v -> v > n;
+            if (sign < 0)
+                return v -> v < n;
+            return v -> v == n;
+        }
+    };
+
+    static final class Du extends Builtin {
+        Du() {
+            super("du", 0, 3, "sums the bytes of regular files under each directory, in parallel.",
+                    "flags : -s total only, -L follow links, arg1 : SourcePath.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            boolean summary = false, follow = false;
+            String root = null;
+            for (String arg : args) {
+                if (arg.equals("-s"))
+                    summary = true;
+                else if (arg.equals("-L"))
+                    follow = true;
+                else if (root == null && !arg.startsWith("-"))
+                    root = arg;
+                else
+                    return invalid();
+            }
+            return term.du(root == null ? "." : root, summary, follow, stdout);
+        }
+    };
+
+    static final class Args extends Builtin {
+        Args() {
+            super("args", 0, 1, "lists all parameters on the command line, number of strings for specific command.",
+                    "arg1 : CommandName.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return args.length == 0 ? term.printArgs() : term.args(args[0]);
+        }
+    };
+
+    static final class Jobs extends Builtin {
+        Jobs() {
+            super("jobs", 0, 0, "lists the commands started in the background with &. A script waits for its jobs"
+                    + " before the shell exits, interactively exit warns once while any are running and then stops them.",
+                    "has no arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.jobs();
+        }
+    };
+
+    static final class Wait extends Builtin {
+        Wait() {
+            super("wait", 0, 1, "waits for background jobs to finish and returns their exit code.",
+                    "arg1 : JobNumber, all jobs if omitted.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.await(args.length == 0 ? null : args[0]);
+        }
+    };
+
+    static final class Fg extends Builtin {
+        Fg() {
+            super("fg", 0, 1, "waits in the foreground for a background job.", "arg1 : JobNumber, the latest if omitted.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.fg(args.length == 0 ? null : args[0], stdout);
+        }
+    };
+
+    static final class Stats extends Builtin {
+        Stats() {
+            super("stats", 0, 1, "shows calls, latency, bytes and exit codes of every command run so far.",
+                    "arg1 : File to export them to as CSV.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.stats(args.length == 0 ? null : args[0], stdout);
+        }
+    };
+
+    static final class History extends Builtin {
+        History() {
+            super("history", 0, 3, "lists the commands typed before, in this session and earlier ones.",
+                    "flags : -s Text only those containing Text, arg1 : Count of the latest to list, 50 if omitted.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            String text = null;
+            int count = 50, i = 0;
+            if (i < args.length && args[i].equals("-s")) {
+                if (++i == args.length)
+                    return invalid();
+                text = args[i++];
+            }
+            if (i < args.length) {
+                try {
+                    count = Integer.parseInt(args[i++]);
+                } catch (NumberFormatException e) {
+                    return invalid();
+                }
+                if (count < 1)
+                    return invalid();
+            }
+            if (i < args.length)
+                return invalid();
+            return term.history(text, count, stdout);
+        }
+    };
+
+    static final class Rsearch extends Builtin {
+        Rsearch() {
+            super("rsearch", 1, 1, "shows the latest command typed that contains text.", "arg1 : Text.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.history(args[0], 1, stdout);
+        }
+    };
+
+    static final class Complete extends Builtin {
+        Complete() {
+            super("complete", 1, 1, "lists the paths that start with prefix.", "arg1 : Prefix.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.complete(args[0], stdout);
+        }
+    };
+
+    static final class Date extends Builtin {
+        Date() {
+            super("date", 0, 0, "displays or sets time.", "has no arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.date();
+        }
+    };
+
+    static final class Help extends Builtin {
+        Help() {
+            super("help", 0, 1, "displays what a command does.", "arg1 : CommandName.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return args.length == 0 ? term.printHelp() : term.help(args[0]);
+        }
+    };
+
+    static final class Pwd extends Builtin {
+        Pwd() {
+            super("pwd", 0, Integer.MAX_VALUE, "prints name of current directory.", "has no arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.pwd();
+        }
+    };
+
+    static final class Clear extends Builtin {
+        Clear() {
+            super("clear", 0, Integer.MAX_VALUE, "clears the terminal screen.", "has no arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return term.clear();
+        }
+    };
+
+    static final class Exit extends Builtin {
+        Exit() {
+            super("exit", 0, 0, "exits the shell.", "has no arguments.");
+        }
+
+        public Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout) {
+            return null; // Special case to end program
+        }
+    };
+}
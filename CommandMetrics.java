@@ -0,0 +1,294 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * Calls, latency, bytes through stdin and stdout and exit codes of every
+ * command run, by command name. Each pipeline stage counts as a call of its
+ * own, so the stage that dominates a pipeline shows up as the slow command.
+ * Recording a call only increments counters that already exist. Every call
+ * is also a shell.Command Flight Recorder event, which costs nothing unless a
+ * recording is running.
+ */
+public class CommandMetrics {
+    private static final Terminal.Execution.ExitCode[] CODES = Terminal.Execution.ExitCode.values();
+
+    private final ConcurrentHashMap<String, Stats> commands = new ConcurrentHashMap<String, Stats>();
+
+    /*
+     * Latencies in nanoseconds, bucketed like an HDR histogram: exact below
+     * 16, then 16 buckets per power of two, so any recorded value is known to
+     * within 1/16 and the buckets for every long fit in one fixed array.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            total.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value))
+                ;
+        }
+
+        private static int index(long value) {
+            if (value < SUB)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+            return (exponent - SUB_BITS + 1) * SUB + sub;
+        }
+
+        // Largest value that falls in bucket index
+        private static long highest(int index) {
+            if (index < SUB)
+                return index;
+            int shift = index / SUB - 1;
+            long sub = index % SUB;
+            return ((SUB + sub + 1) << shift) - 1;
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); ++i)
+                n += counts.get(i);
+            return n;
+        }
+
+        // Value at or below which fraction of the recorded values fall
+        long percentile(double fraction) {
+            long n = count();
+            if (n == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(highest(i), max.get());
+            }
+            return max.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long total() {
+            return total.get();
+        }
+    };
+
+    static final class Stats {
+        final String name;
+        final Histogram latency = new Histogram();
+        final AtomicLong read = new AtomicLong();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLongArray exits = new AtomicLongArray(CODES.length);
+
+        Stats(String name) {
+            this.name = name;
+        }
+    };
+
+    @Name("shell.Command")
+    @Label("Shell Command")
+    @Category("Shell")
+    @Description("One command, or one stage of a pipeline, run by the shell")
+    static final class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        String arguments;
+
+        @Label("Exit Code")
+        String exitCode;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    };
+
+    /*
+     * Measures one call: run the command over in and out in place of the
+     * streams given, then report it with done().
+     */
+    final class Meter {
+        final CountingInput in;
+        final CountingOutput out;
+        private final long start;
+        private final CommandEvent event;
+
+        private Meter(InputStream stdin, OutputStream stdout) {
+            this.in = stdin == null ? null : new CountingInput(stdin);
+            this.out = new CountingOutput(stdout);
+            this.event = new CommandEvent();
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        void done(Parser.Stage stage, Terminal.Execution exec) {
+            long elapsed = System.nanoTime() - start;
+            if (stage.name.isEmpty())
+                return;
+            long read = in == null ? 0 : in.count;
+            // exit has no Execution and always succeeds
+            Terminal.Execution.ExitCode code = exec == null ? Terminal.Execution.ExitCode.SUCCESS : exec.exit_code;
+            Stats stats = commands.computeIfAbsent(stage.name, Stats::new);
+            stats.latency.record(elapsed);
+            stats.read.addAndGet(read);
+            stats.written.addAndGet(out.count);
+            stats.exits.incrementAndGet(code.ordinal());
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = stage.name;
+                event.arguments = String.join(" ", stage.args);
+                event.exitCode = code.name();
+                event.bytesRead = read;
+                event.bytesWritten = out.count;
+                event.commit();
+            }
+        }
+    };
+
+    Meter meter(InputStream stdin, OutputStream stdout) {
+        return new Meter(stdin, stdout);
+    }
+
+    static final class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                ++count;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    };
+
+    /*
+     * Counts what passes through to target. Terminal.transfer() looks through
+     * it to target so copies from files stay zero copy, and adds what it moved
+     * with add().
+     */
+    static final class CountingOutput extends OutputStream {
+        final OutputStream target;
+        long count;
+
+        CountingOutput(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+
+        void add(long n) {
+            count += n;
+        }
+    };
+
+    // Commands run so far, by name
+    ArrayList<Stats> snapshot() {
+        ArrayList<Stats> all = new ArrayList<Stats>(commands.values());
+        Collections.sort(all, (a, b) -> a.name.compareTo(b.name));
+        return all;
+    }
+
+    // A table for people, latencies in microseconds
+    void print(Writer out) throws IOException {
+        out.write(String.format("%-10s %8s %10s %10s %10s %10s %12s %12s  %s%n", "command", "calls", "p50(us)",
+                "p90(us)", "p99(us)", "max(us)", "read", "written", "exit codes"));
+        for (Stats s : snapshot()) {
+            StringBuilder exits = new StringBuilder();
+            for (int i = 0; i < CODES.length; ++i) {
+                if (s.exits.get(i) > 0)
+                    exits.append(CODES[i]).append('=').append(s.exits.get(i)).append(' ');
+            }
+            out.write(String.format("%-10s %8d %10d %10d %10d %10d %12d %12d  %s%n", s.name, s.latency.count(),
+                    s.latency.percentile(0.5) / 1000, s.latency.percentile(0.9) / 1000,
+                    s.latency.percentile(0.99) / 1000, s.latency.max() / 1000, s.read.get(), s.written.get(),
+                    exits.toString().trim()));
+        }
+    }
+
+    // Comma separated, one row per command, latencies in nanoseconds
+    void export(Writer out) throws IOException {
+        StringBuilder header = new StringBuilder("command,calls,total_ns,p50_ns,p90_ns,p99_ns,max_ns,bytes_read,bytes_written");
+        for (Terminal.Execution.ExitCode code : CODES)
+            header.append(',').append(code);
+        out.write(header.append('\n').toString());
+        for (Stats s : snapshot()) {
+            StringBuilder row = new StringBuilder(s.name);
+            row.append(',').append(s.latency.count()).append(',').append(s.latency.total());
+            row.append(',').append(s.latency.percentile(0.5)).append(',').append(s.latency.percentile(0.9));
+            row.append(',').append(s.latency.percentile(0.99)).append(',').append(s.latency.max());
+            row.append(',').append(s.read.get()).append(',').append(s.written.get());
+            for (int i = 0; i < CODES.length; ++i)
+                row.append(',').append(s.exits.get(i));
+            out.write(row.append('\n').toString());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * Maps command names to their implementations. Builtins are registered by
+ * class name and only loaded the first time they are looked up, so a shell
+ * that runs one command initializes only that command.
+ */
+public class CommandRegistry {
+    private final LinkedHashMap<String, String> classes = new LinkedHashMap<String, String>();
+    private final HashMap<String, ShellCommand> loaded = new HashMap<String, ShellCommand>();
+
+    static CommandRegistry builtins() {
+        CommandRegistry registry = new CommandRegistry();
+        registry.register("cd", "Builtins$Cd");
+        registry.register("ls", "Builtins$Ls");
+        registry.register("cp", "Builtins$Cp");
+        registry.register("cat", "Builtins$Cat");
+        registry.register("grep", "Builtins$Grep");
+        registry.register("sort", "Builtins$Sort");
+        registry.register("more", "Builtins$More");
+        registry.register("mkdir", "Builtins$Mkdir");
+        registry.register("rmdir", "Builtins$Rmdir");
+        registry.register("mv", "Builtins$Mv");
+        registry.register("rm", "Builtins$Rm");
+        registry.register("find", "Builtins$Find");
+        registry.register("du", "Builtins$Du");
+        registry.register("jobs", "Builtins$Jobs");
+        registry.register("wait", "Builtins$Wait");
+        registry.register("fg", "Builtins$Fg");
+        registry.register("stats", "Builtins$Stats");
+        registry.register("history", "Builtins$History");
+        registry.register("rsearch", "Builtins$Rsearch");
+        registry.register("complete", "Builtins$Complete");
+        registry.register("args", "Builtins$Args");
+        registry.register("date", "Builtins$Date");
+        registry.register("help", "Builtins$Help");
+        registry.register("pwd", "Builtins$Pwd");
+        registry.register("clear", "Builtins$Clear");
+        registry.register("exit", "Builtins$Exit");
+        return registry;
+    }
+
+    synchronized void register(String name, String className) {
+        classes.put(name, className);
+        loaded.remove(name);
+    }
+
+    synchronized void register(ShellCommand command) {
+        classes.put(command.name(), command.getClass().getName());
+        loaded.put(command.name(), command);
+    }
+
+    // The command called name, or null if there is none
+    synchronized ShellCommand lookup(String name) {
+        ShellCommand command = loaded.get(name);
+        if (command != null)
+            return command;
+        String className = classes.get(name);
+        if (className == null)
+            return null;
+        try {
+            command = (ShellCommand) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Can't load command " + name + " from " + className, e);
+        }
+        loaded.put(name, command);
+        return command;
+    }
+
+    // Registered names, in registration order
+    synchronized List<String> names() {
+        return new ArrayList<String>(classes.keySet());
+    }
+}
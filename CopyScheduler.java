@@ -0,0 +1,419 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Copies many files at once on a fixed number of threads. Small files are
+ * handed to the threads in batches so each task is worth scheduling, large
+ * ones are split into ranges copied side by side into the same temp file, and
+ * everything else is one task per file. When the threads fall behind the
+ * caller runs copies itself, so however big the tree, only a few tasks wait
+ * in memory. Every file is copied like copyFile() does, atomically.
+ *
+ * In sync mode a file whose destination has its size and modification time
+ * is left alone after just the two stats, and copies are given the source's
+ * time so the next run sees them as unchanged. With a manifest, large files
+ * that did change are compared block by block and only the blocks that differ
+ * are rewritten, in place.
+ */
+public class CopyScheduler {
+    static final long SMALL = 1 << 20;
+    static final long BATCH_BYTES = 8 << 20;
+    static final int BATCH_FILES = 64;
+    static final long RANGE = 64L << 20;
+    static final long DELTA = 4L * SyncManifest.BLOCK;
+
+    private final ThreadPoolExecutor pool;
+    private final boolean sync;
+    private final SyncManifest manifest;
+    private final LongAdder unchanged = new LongAdder();
+    // The caller is one party, every task in flight another
+    private final Phaser pending = new Phaser(1);
+    private final ConcurrentLinkedQueue<String> copied = new ConcurrentLinkedQueue<String>();
+    private final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<String>();
+    private ArrayList<Path[]> batch = new ArrayList<Path[]>();
+    private long batchBytes = 0;
+
+    CopyScheduler(int jobs) {
+        this(jobs, false, null);
+    }
+
+    // manifest, when given, enables block level updates and implies sync
+    CopyScheduler(int jobs, boolean sync, SyncManifest manifest) {
+        this.sync = sync || manifest != null;
+        this.manifest = manifest;
+        AtomicInteger threads = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(2 * jobs), r -> {
+                    Thread t = new Thread(r, "cp-" + threads.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /*
+     * Copies into a temp file beside dst and renames it into place, so a
+     * crash never leaves a half written destination. Regular files are sized
+     * up front and moved with transferTo, letting the kernel copy without
+     * passing the bytes through user space.
+     */
+    static void copyFile(Path src, Path dst) throws IOException {
+        Path tmp = Files.createTempFile(dst.getParent(), "." + dst.getFileName(), ".part");
+        try {
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                if (Files.isRegularFile(src)) {
+                    long size = in.size();
+                    if (size > 0)
+                        out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                    position = transfer(in, position, size, out);
+                    out.truncate(position);
+                } else {
+                    // Unknown length (pipes, devices): pull until end of stream
+                    long n;
+                    while ((n = out.transferFrom(in, position, 1 << 20)) > 0)
+                        position += n;
+                }
+                out.force(true);
+            }
+            install(src, tmp, dst);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Copies [position, end) of in to out's position; returns where it stopped
+    private static long transfer(FileChannel in, long position, long end, FileChannel out) throws IOException {
+        while (position < end) {
+            long n = in.transferTo(position, end - position, out);
+            if (n <= 0)
+                break;
+            position += n;
+        }
+        return position;
+    }
+
+    // Gives tmp src's permissions and renames it over dst
+    private static void install(Path src, Path tmp, Path dst) throws IOException {
+        try {
+            Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(src));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, keep the defaults
+        }
+        Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Schedules copying the file src to dst
+    void copy(Path src, Path dst) {
+        long size;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+            size = attrs.isRegularFile() ? attrs.size() : -1;
+            if (sync && size >= 0) {
+                BasicFileAttributes old = existing(dst);
+                if (old != null && old.size() == size && old.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                    unchanged.increment();
+                    return;
+                }
+                if (manifest != null && old != null && old.isRegularFile() && size >= DELTA) {
+                    submit(() -> delta(src, dst));
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            failed(src, e);
+            return;
+        }
+        if (size >= 2 * RANGE) {
+            ranges(src, dst, size);
+        } else if (size >= 0 && size < SMALL) {
+            batch.add(new Path[] { src, dst });
+            batchBytes += size;
+            if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES)
+                flush();
+        } else {
+            submit(() -> single(src, dst));
+        }
+    }
+
+    /*
+     * Whether dst is src or somewhere under it, following links on the part of
+     * dst that exists. Copying a tree there would walk what it creates.
+     */
+    static boolean within(Path src, Path dst) throws IOException {
+        Path existing = dst.toAbsolutePath().normalize();
+        while (existing != null && !Files.exists(existing))
+            existing = existing.getParent();
+        return existing != null && existing.toRealPath().startsWith(src.toRealPath());
+    }
+
+    /*
+     * Schedules copying the tree at src to dst, creating directories as it
+     * goes. Links are copied as links, not followed.
+     */
+    void copyTree(Path src, Path dst) {
+        try {
+            Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    try {
+                        Files.createDirectories(dst.resolve(src.relativize(d).toString()));
+                        return FileVisitResult.CONTINUE;
+                    } catch (IOException e) {
+                        failed(d, e);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                    Path target = f.equals(src) ? dst : dst.resolve(src.relativize(f).toString());
+                    if (attrs.isSymbolicLink()) {
+                        try {
+                            if ((sync || manifest != null) && sameLink(f, target)) {
+                                unchanged.increment();
+                                return FileVisitResult.CONTINUE;
+                            }
+                            Files.copy(f, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+                            copied(f, target);
+                        } catch (IOException e) {
+                            failed(f, e);
+                        }
+                    } else {
+                        copy(f, target);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path f, IOException e) {
+                    failed(f, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            failed(src, e);
+        }
+    }
+
+    // Waits for every scheduled copy to finish, then stops the threads
+    void await() {
+        flush();
+        pending.arriveAndAwaitAdvance();
+        pool.shutdown();
+        if (manifest != null) {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                failed.add(SyncManifest.NAME + ": " + TreeDeleter.reason(e));
+            }
+        }
+    }
+
+    // Files left alone in sync mode because they hadn't changed
+    long unchanged() {
+        return unchanged.sum();
+    }
+
+    // "src -> dst" for each file copied, sorted
+    List<String> copied() {
+        ArrayList<String> list = new ArrayList<String>(copied);
+        Collections.sort(list);
+        return list;
+    }
+
+    // "src: reason" for each file that wasn't, sorted
+    List<String> failed() {
+        ArrayList<String> list = new ArrayList<String>(failed);
+        Collections.sort(list);
+        return list;
+    }
+
+    private void flush() {
+        if (batch.isEmpty())
+            return;
+        final ArrayList<Path[]> files = batch;
+        batch = new ArrayList<Path[]>();
+        batchBytes = 0;
+        submit(() -> {
+            for (Path[] f : files)
+                single(f[0], f[1]);
+        });
+    }
+
+    private void submit(Runnable task) {
+        pending.register();
+        pool.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                pending.arriveAndDeregister();
+            }
+        });
+    }
+
+    private void single(Path src, Path dst) {
+        try {
+            // Taken first, a source changed while copying is copied again next time
+            FileTime modified = Files.getLastModifiedTime(src);
+            copyFile(src, dst);
+            settle(dst, modified);
+            copied(src, dst);
+        } catch (IOException e) {
+            failed(src, e);
+        }
+    }
+
+    // In sync mode dates a fresh copy like its source and records its hashes
+    private void settle(Path dst, FileTime modified) throws IOException {
+        if (!sync)
+            return;
+        Files.setLastModifiedTime(dst, modified);
+        BasicFileAttributes attrs = Files.readAttributes(dst, BasicFileAttributes.class);
+        if (manifest != null && attrs.size() >= DELTA)
+            manifest.put(dst, attrs, SyncManifest.hash(dst));
+    }
+
+    // Whether dst is already a link to where the link src points
+    private static boolean sameLink(Path src, Path dst) throws IOException {
+        if (!Files.isSymbolicLink(dst))
+            return false;
+        return Files.readSymbolicLink(dst).equals(Files.readSymbolicLink(src));
+    }
+
+    private static BasicFileAttributes existing(Path p) throws IOException {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Brings the existing file dst up to date with src by hashing both in
+     * blocks, dst's hashes coming from the manifest when it has them, and
+     * rewriting only the blocks that differ. This writes dst in place: if it
+     * is interrupted, dst's time no longer matches and the next run compares
+     * it afresh.
+     */
+    private void delta(Path src, Path dst) {
+        try {
+            BasicFileAttributes from = Files.readAttributes(src, BasicFileAttributes.class);
+            byte[][] old = manifest.hashes(dst, Files.readAttributes(dst, BasicFileAttributes.class));
+            if (old == null)
+                old = SyncManifest.hash(dst);
+            byte[][] now = SyncManifest.hash(src);
+            int rewritten = 0;
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < now.length; ++i) {
+                    if (i < old.length && Arrays.equals(old[i], now[i]))
+                        continue;
+                    long start = (long) i * SyncManifest.BLOCK;
+                    long end = Math.min(from.size(), start + SyncManifest.BLOCK);
+                    out.position(start);
+                    if (transfer(in, start, end, out) != end)
+                        throw new IOException("short copy");
+                    ++rewritten;
+                }
+                out.truncate(from.size());
+                out.force(true);
+            }
+            Files.setLastModifiedTime(dst, from.lastModifiedTime());
+            manifest.put(dst, Files.readAttributes(dst, BasicFileAttributes.class), now);
+            copied.add(src + " -> " + dst + " (" + rewritten + " of " + now.length + " blocks)");
+        } catch (IOException e) {
+            failed(src, e);
+        }
+    }
+
+    /*
+     * Copies a large file as RANGE sized pieces at once, each through its own
+     * channels into a temp file sized up front. Whichever piece finishes last
+     * installs the file, or removes it if any piece failed.
+     */
+    private void ranges(Path src, Path dst, long size) {
+        final Path tmp;
+        final FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(src);
+            tmp = Files.createTempFile(dst.getParent(), "." + dst.getFileName(), ".part");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        } catch (IOException e) {
+            failed(src, e);
+            return;
+        }
+        final int pieces = (int) ((size + RANGE - 1) / RANGE);
+        final AtomicInteger left = new AtomicInteger(pieces);
+        final ConcurrentLinkedQueue<IOException> errors = new ConcurrentLinkedQueue<IOException>();
+        for (int i = 0; i < pieces; ++i) {
+            final long start = i * RANGE, end = Math.min(size, start + RANGE);
+            submit(() -> {
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                        FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    out.position(start);
+                    if (transfer(in, start, end, out) != end)
+                        throw new IOException("short copy");
+                } catch (IOException e) {
+                    errors.add(e);
+                } finally {
+                    if (left.decrementAndGet() == 0)
+                        finish(src, tmp, dst, modified, errors.peek());
+                }
+            });
+        }
+    }
+
+    private void finish(Path src, Path tmp, Path dst, FileTime modified, IOException error) {
+        try {
+            if (error != null)
+                throw error;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                out.force(true);
+            }
+            install(src, tmp, dst);
+            settle(dst, modified);
+            copied(src, dst);
+        } catch (IOException e) {
+            failed(src, e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                // Left behind as a .part file
+            }
+        }
+    }
+
+    private void copied(Path src, Path dst) {
+        copied.add(src + " -> " + dst);
+    }
+
+    private void failed(Path src, IOException e) {
+        failed.add(src + ": " + TreeDeleter.reason(e));
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Sorts lines with at most a fixed budget of them in memory. Input that fits
+ * is sorted with Arrays.parallelSort and written out directly; otherwise each
+ * budget's worth becomes a sorted run in a temp file and the runs are merged,
+ * FAN_IN at a time, with a priority queue. Temp files are removed on every
+ * path out.
+ */
+public class ExternalSort {
+    static final int FAN_IN = 64;
+    // One char per byte: any input round-trips and chars order like the bytes
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private final Comparator<String> keys;
+    private final Comparator<String> order;
+    private final boolean unique;
+    private final long budget;
+    private final ArrayList<Path> temps = new ArrayList<Path>();
+
+    /*
+     * field counts whitespace separated fields from 1 and the key runs from
+     * there to the end of the line; 0 keys on the whole line. Lines with equal
+     * keys are ordered by the whole line unless unique, which keeps only the
+     * first of them.
+     */
+    ExternalSort(boolean numeric, boolean reverse, boolean unique, int field, long budget) {
+        Comparator<String> k = numeric ? (a, b) -> Double.compare(number(a, field), number(b, field))
+                : (a, b) -> compareFrom(a, keyStart(a, field), b, keyStart(b, field));
+        this.keys = reverse ? k.reversed() : k;
+        Comparator<String> whole = unique ? k : k.thenComparing(Comparator.naturalOrder());
+        this.order = reverse ? whole.reversed() : whole;
+        this.unique = unique;
+        this.budget = budget;
+    }
+
+    void sort(List<BufferedReader> inputs, Writer out) throws IOException {
+        try {
+            ArrayList<Path> runs = new ArrayList<Path>();
+            ArrayList<String> lines = new ArrayList<String>();
+            long used = 0;
+            for (BufferedReader in : inputs) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                    // Rough heap cost of a String and its slot in the list
+                    used += 56 + 2L * line.length();
+                    if (used >= budget) {
+                        runs.add(spill(lines));
+                        lines.clear();
+                        used = 0;
+                    }
+                }
+            }
+            if (runs.isEmpty()) {
+                write(sorted(lines), out);
+                return;
+            }
+            if (!lines.isEmpty())
+                runs.add(spill(lines));
+            lines = null;
+            while (runs.size() > FAN_IN) {
+                ArrayList<Path> merged = new ArrayList<Path>();
+                for (int i = 0; i < runs.size(); i += FAN_IN) {
+                    List<Path> group = runs.subList(i, Math.min(runs.size(), i + FAN_IN));
+                    Path run = temp();
+                    try (BufferedWriter w = Files.newBufferedWriter(run, CHARSET)) {
+                        merge(group, w);
+                    }
+                    for (Path p : group)
+                        Files.deleteIfExists(p);
+                    merged.add(run);
+                }
+                runs = merged;
+            }
+            merge(runs, out);
+        } finally {
+            for (Path p : temps)
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private String[] sorted(ArrayList<String> lines) {
+        String[] array = lines.toArray(new String[0]);
+        Arrays.parallelSort(array, order);
+        return array;
+    }
+
+    private Path spill(ArrayList<String> lines) throws IOException {
+        Path run = temp();
+        try (BufferedWriter w = Files.newBufferedWriter(run, CHARSET)) {
+            // Runs keep duplicates, they're dropped while merging
+            for (String line : sorted(lines)) {
+                w.write(line);
+                w.write('\n');
+            }
+        }
+        return run;
+    }
+
+    private Path temp() throws IOException {
+        Path p = Files.createTempFile("sort", ".run");
+        temps.add(p);
+        return p;
+    }
+
+    private void write(String[] lines, Writer out) throws IOException {
+        String last = null;
+        for (String line : lines) {
+            if (unique && last != null && keys.compare(last, line) == 0)
+                continue;
+            out.write(line);
+            out.write('\n');
+            last = line;
+        }
+    }
+
+    private static final class Run {
+        final BufferedReader in;
+        final int index;
+        String line;
+
+        Run(BufferedReader in, int index) throws IOException {
+            this.in = in;
+            this.index = index;
+            this.line = in.readLine();
+        }
+    };
+
+    private void merge(List<Path> runs, Writer out) throws IOException {
+        // Equal lines come out in run order, keeping the sort stable
+        PriorityQueue<Run> heads = new PriorityQueue<Run>(Math.max(1, runs.size()),
+                (a, b) -> {
+                    int c = order.compare(a.line, b.line);
+                    return c != 0 ? c : Integer.compare(a.index, b.index);
+                });
+        ArrayList<BufferedReader> open = new ArrayList<BufferedReader>();
+        try {
+            for (int i = 0; i < runs.size(); ++i) {
+                BufferedReader in = Files.newBufferedReader(runs.get(i), CHARSET);
+                open.add(in);
+                Run run = new Run(in, i);
+                if (run.line != null)
+                    heads.add(run);
+            }
+            String last = null;
+            while (!heads.isEmpty()) {
+                Run run = heads.poll();
+                if (!unique || last == null || keys.compare(last, run.line) != 0) {
+                    out.write(run.line);
+                    out.write('\n');
+                    last = run.line;
+                }
+                run.line = run.in.readLine();
+                if (run.line != null)
+                    heads.add(run);
+            }
+        } finally {
+            for (BufferedReader in : open)
+                in.close();
+        }
+    }
+
+    // Index where the key starts: field is 1 based, 0 means the whole line
+    private static int keyStart(String s, int field) {
+        int i = 0;
+        final int n = s.length();
+        for (int f = 1; f < field; ++f) {
+            while (i < n && Character.isWhitespace(s.charAt(i)))
+                ++i;
+            while (i < n && !Character.isWhitespace(s.charAt(i)))
+                ++i;
+        }
+        return i;
+    }
+
+    private static int compareFrom(String a, int i, String b, int j) {
+        final int n = a.length(), m = b.length();
+        while (i < n && j < m) {
+            char x = a.charAt(i++), y = b.charAt(j++);
+            if (x != y)
+                return x - y;
+        }
+        return (n - i) - (m - j);
+    }
+
+    // Leading number of the key, 0 when there is none, parsed without allocating
+    private static double number(String s, int field) {
+        int i = keyStart(s, field);
+        final int n = s.length();
+        while (i < n && Character.isWhitespace(s.charAt(i)))
+            ++i;
+        boolean negative = false;
+        if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+            negative = s.charAt(i++) == '-';
+        double value = 0;
+        while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+            value = value * 10 + (s.charAt(i++) - '0');
+        if (i < n && s.charAt(i) == '.') {
+            double scale = 0.1;
+            for (++i; i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9'; ++i, scale /= 10)
+                value += (s.charAt(i) - '0') * scale;
+        }
+        return negative ? -value : value;
+    }
+}
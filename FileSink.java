@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * The file a command's output is redirected to, opened before the command
+ * runs so output streams into it through a fixed buffer however much there
+ * is. Terminal.transfer() takes the channel to copy files into it directly.
+ */
+public class FileSink extends OutputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    // Truncates file, or with append adds to its end; creates it if missing
+    FileSink(Path file, boolean append, int size) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            drain();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.remaining())
+            drain();
+        if (len >= buffer.capacity()) {
+            ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            return;
+        }
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    // Empties the buffer first so bytes sent through the channel stay in order
+    synchronized FileChannel getChannel() throws IOException {
+        drain();
+        return channel;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
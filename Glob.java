@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/*
+ * A path pattern with *, ?, [...] and ** compiled once, segment by segment.
+ * A literal segment is resolved without listing anything, a pattern segment
+ * lists just the directory it applies to, and only ** descends further, so
+ * a walk touches no more of the tree than the pattern can match. Matches come
+ * out one at a time, sorted within each directory, as typed: relative paths
+ * stay relative. Names starting with "." only match a segment that does too,
+ * and ** doesn't follow symbolic links.
+ */
+public class Glob {
+    private static final int CACHE_SIZE = 256;
+    private static final LinkedHashMap<String, Glob> cache = new LinkedHashMap<String, Glob>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Glob> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    interface Sink {
+        // Takes one match; false stops the walk
+        boolean accept(String path);
+    }
+
+    private final boolean absolute;
+    // Only directories match a pattern ending in "/"
+    private final boolean directories;
+    // Per segment: the name itself when it has nothing to match, else a matcher, or ** for neither
+    private final String[] literals;
+    private final PathMatcher[] matchers;
+    private final boolean[] dots;
+
+    private Glob(String pattern) {
+        this.absolute = pattern.startsWith("/");
+        this.directories = pattern.endsWith("/");
+        ArrayList<String> segments = new ArrayList<String>();
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty())
+                segments.add(segment);
+        }
+        final int n = segments.size();
+        this.literals = new String[n];
+        this.matchers = new PathMatcher[n];
+        this.dots = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            String segment = segments.get(i);
+            if (segment.equals("**"))
+                continue;
+            if (!magic(segment)) {
+                literals[i] = unescape(segment);
+                continue;
+            }
+            try {
+                // Braces are plain characters here, not alternatives
+                String glob = segment.replace("{", "\\{").replace("}", "\\}");
+                matchers[i] = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+                dots[i] = segment.startsWith(".") || segment.startsWith("\\.");
+            } catch (PatternSyntaxException e) {
+                // An unclosed [ is just a character
+                literals[i] = unescape(segment);
+            }
+        }
+    }
+
+    /*
+     * The compiled form of pattern, in which \ makes the next character
+     * literal. Compiled globs are shared, like parsed commands.
+     */
+    static Glob compile(String pattern) {
+        synchronized (cache) {
+            Glob glob = cache.get(pattern);
+            if (glob == null) {
+                glob = new Glob(pattern);
+                cache.put(pattern, glob);
+            }
+            return glob;
+        }
+    }
+
+    /*
+     * Hands every path matching under cwd to sink, in order. Returns false if
+     * sink stopped the walk.
+     */
+    boolean expand(Path cwd, Sink sink) throws IOException {
+        if (literals.length == 0)
+            return true;
+        Path start = absolute ? cwd.getRoot() : cwd;
+        return walk(start, absolute ? "/" : "", 0, sink);
+    }
+
+    private boolean walk(Path dir, String shown, int segment, Sink sink) throws IOException {
+        final boolean last = segment == literals.length - 1;
+        if (literals[segment] != null) {
+            Path child = dir.resolve(literals[segment]);
+            String path = shown + literals[segment];
+            if (!last)
+                return !Files.isDirectory(child) || walk(child, path + "/", segment + 1, sink);
+            if (directories)
+                return !Files.isDirectory(child) || sink.accept(path + "/");
+            return !Files.exists(child, LinkOption.NOFOLLOW_LINKS) || sink.accept(path);
+        }
+        if (matchers[segment] == null) {
+            // ** is no directory at all, then every one below, each matched against the rest
+            if (last) {
+                if (!list(dir, shown, null, false, sink))
+                    return false;
+            } else if (!walk(dir, shown, segment + 1, sink)) {
+                return false;
+            }
+            for (String name : names(dir, null, false, true, false)) {
+                if (!walk(dir.resolve(name), shown + name + "/", segment, sink))
+                    return false;
+            }
+            return true;
+        }
+        if (last)
+            return list(dir, shown, matchers[segment], dots[segment], sink);
+        for (String name : names(dir, matchers[segment], dots[segment], true, true)) {
+            if (!walk(dir.resolve(name), shown + name + "/", segment + 1, sink))
+                return false;
+        }
+        return true;
+    }
+
+    // Hands over the entries of dir that match, ending in "/" if they must be directories
+    private boolean list(Path dir, String shown, PathMatcher matcher, boolean dot, Sink sink) throws IOException {
+        for (String name : names(dir, matcher, dot, directories, true)) {
+            if (!sink.accept(shown + name + (directories ? "/" : "")))
+                return false;
+        }
+        return true;
+    }
+
+    // Sorted names in dir that match, every one if matcher is null
+    private static List<String> names(Path dir, PathMatcher matcher, boolean dot, boolean onlyDirectories,
+            boolean followLinks) throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        if (!Files.isDirectory(dir))
+            return names;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                Path name = entry.getFileName();
+                if (!dot && name.toString().startsWith("."))
+                    continue;
+                if (matcher != null && !matcher.matches(name))
+                    continue;
+                if (onlyDirectories && !(followLinks ? Files.isDirectory(entry)
+                        : Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)))
+                    continue;
+                names.add(name.toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // Whether segment has an unescaped *, ? or [
+    static boolean magic(String segment) {
+        for (int i = 0; i < segment.length(); ++i) {
+            char c = segment.charAt(i);
+            if (c == '\\')
+                ++i;
+            else if (c == '*' || c == '?' || c == '[')
+                return true;
+        }
+        return false;
+    }
+
+    static String unescape(String pattern) {
+        StringBuilder literal = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length())
+                c = pattern.charAt(++i);
+            literal.append(c);
+        }
+        return literal.toString();
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Commands typed at the shell, kept one per line in a file that is only ever
+ * appended to. New lines are buffered and written, then fsynced, together
+ * every BATCH commands, every SYNC_NANOS and when the JVM exits. Nothing is
+ * read at startup: the file is memory mapped the first time history is asked
+ * for, and a trigram index over it is built the first time it is searched,
+ * after which finding a string among millions of lines only verifies the
+ * lines sharing its rarest trigram.
+ */
+public class History {
+    static final int BATCH = 32;
+    static final long SYNC_NANOS = 1_000_000_000L;
+
+    private final Path file;
+    private FileChannel out;
+    private final ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private int unsynced = 0;
+    private long synced = System.nanoTime();
+
+    // Lines of the file as mapped when first loaded, then those added since
+    private MappedByteBuffer map;
+    private int[] starts;
+    private int mapped = -1;
+    private final ArrayList<byte[]> added = new ArrayList<byte[]>();
+    private Trigrams index;
+
+    // Ids of the lines holding one trigram, in increasing order
+    private static final class Postings {
+        int[] ids = new int[4];
+        int count = 0;
+
+        void add(int id) {
+            if (count > 0 && ids[count - 1] == id)
+                return;
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+        }
+    };
+
+    /*
+     * Postings by trigram, open addressed so that indexing millions of lines
+     * boxes no keys. A trigram is 24 bits; slots hold it plus one, 0 is free.
+     */
+    private static final class Trigrams {
+        int[] keys = new int[1 << 12];
+        Postings[] postings = new Postings[1 << 12];
+        int size = 0;
+
+        Postings get(int trigram) {
+            int slot = slot(keys, trigram);
+            return keys[slot] == 0 ? null : postings[slot];
+        }
+
+        void add(int trigram, int id) {
+            int slot = slot(keys, trigram);
+            if (keys[slot] == 0) {
+                if (++size * 2 > keys.length) {
+                    grow();
+                    slot = slot(keys, trigram);
+                }
+                keys[slot] = trigram + 1;
+                postings[slot] = new Postings();
+            }
+            postings[slot].add(id);
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            Postings[] oldPostings = postings;
+            keys = new int[oldKeys.length * 2];
+            postings = new Postings[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] == 0)
+                    continue;
+                int slot = slot(keys, oldKeys[i] - 1);
+                keys[slot] = oldKeys[i];
+                postings[slot] = oldPostings[i];
+            }
+        }
+
+        private static int slot(int[] keys, int trigram) {
+            int mask = keys.length - 1;
+            int slot = (trigram * 0x9E3779B9) >>> 7 & mask;
+            while (keys[slot] != 0 && keys[slot] != trigram + 1)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+    };
+
+    // One History per file, shared by every Terminal and synced by a single hook at exit
+    private static final ConcurrentHashMap<Path, History> open = new ConcurrentHashMap<Path, History>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (History history : open.values()) {
+                try {
+                    history.sync();
+                } catch (IOException e) {
+                    // Nowhere left to report it
+                }
+            }
+        }, "history"));
+    }
+
+    private History(Path file) {
+        this.file = file;
+    }
+
+    // The history kept in file
+    static History of(Path file) {
+        return open.computeIfAbsent(file.toAbsolutePath().normalize(), History::new);
+    }
+
+    // $HOME/.simple_shell_history unless the shell.history property names another file
+    static Path defaultFile() {
+        String name = System.getProperty("shell.history");
+        if (name != null)
+            return Paths.get(name);
+        return Paths.get(System.getProperty("user.home"), ".simple_shell_history");
+    }
+
+    synchronized void add(String cmd) throws IOException {
+        if (cmd.isBlank() || cmd.indexOf('\n') >= 0)
+            return;
+        byte[] line = (cmd + '\n').getBytes(StandardCharsets.UTF_8);
+        if (mapped >= 0) {
+            byte[] text = Arrays.copyOf(line, line.length - 1);
+            added.add(text);
+            if (index != null)
+                index(mapped + added.size() - 1, text, 0, text.length);
+        }
+        if (line.length > pending.remaining())
+            write();
+        if (line.length > pending.capacity()) {
+            ByteBuffer bytes = ByteBuffer.wrap(line);
+            while (bytes.hasRemaining())
+                channel().write(bytes);
+        } else {
+            pending.put(line);
+        }
+        if (++unsynced >= BATCH || System.nanoTime() - synced >= SYNC_NANOS)
+            sync();
+    }
+
+    // Writes out what is buffered and makes it durable
+    synchronized void sync() throws IOException {
+        write();
+        if (out != null && unsynced > 0)
+            out.force(false);
+        unsynced = 0;
+        synced = System.nanoTime();
+    }
+
+    synchronized int size() throws IOException {
+        load();
+        return mapped + added.size();
+    }
+
+    // Line id, counting from 0 for the oldest
+    synchronized String get(int id) throws IOException {
+        load();
+        if (id >= mapped)
+            return new String(added.get(id - mapped), StandardCharsets.UTF_8);
+        byte[] text = new byte[end(id) - starts[id]];
+        map.get(starts[id], text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    // Ids of up to limit lines containing text, newest first
+    synchronized List<Integer> search(String text, int limit) throws IOException {
+        load();
+        byte[] q = text.getBytes(StandardCharsets.UTF_8);
+        ArrayList<Integer> found = new ArrayList<Integer>();
+        if (q.length < 3) {
+            for (int id = mapped + added.size() - 1; id >= 0 && found.size() < limit; --id) {
+                if (contains(id, q))
+                    found.add(id);
+            }
+            return found;
+        }
+        if (index == null)
+            buildIndex();
+        // Every match holds all of q's trigrams, so its rarest one narrows things most
+        Postings rarest = null;
+        for (int i = 0; i + 3 <= q.length; ++i) {
+            Postings p = index.get(trigram(q, i));
+            if (p == null)
+                return found;
+            if (rarest == null || p.count < rarest.count)
+                rarest = p;
+        }
+        for (int i = rarest.count - 1; i >= 0 && found.size() < limit; --i) {
+            if (contains(rarest.ids[i], q))
+                found.add(rarest.ids[i]);
+        }
+        return found;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (out == null)
+            out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return out;
+    }
+
+    private void write() throws IOException {
+        if (pending.position() == 0)
+            return;
+        pending.flip();
+        FileChannel channel = channel();
+        while (pending.hasRemaining())
+            channel.write(pending);
+        pending.clear();
+    }
+
+    // Maps the file and finds its lines, once; lines added before are in it by then
+    private void load() throws IOException {
+        if (mapped >= 0)
+            return;
+        write();
+        starts = new int[1024];
+        mapped = 0;
+        long size;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = in.size();
+            // A history past 2 GB is read from its last 2 GB
+            long from = Math.max(0, size - Integer.MAX_VALUE);
+            map = in.map(FileChannel.MapMode.READ_ONLY, from, size - from);
+        } catch (NoSuchFileException e) {
+            map = null;
+            return;
+        }
+        final int n = map.limit();
+        int start = size > n ? -1 : 0;
+        for (int i = 0; i < n; ++i) {
+            if (map.get(i) != '\n')
+                continue;
+            if (start >= 0 && i > start) {
+                if (mapped == starts.length)
+                    starts = Arrays.copyOf(starts, mapped * 2);
+                starts[mapped++] = start;
+            }
+            start = i + 1;
+        }
+        // A last line without its newline, cut short by a crash, is left out
+    }
+
+    private int end(int id) {
+        int e = starts[id];
+        while (map.get(e) != '\n')
+            ++e;
+        return e;
+    }
+
+    private boolean contains(int id, byte[] q) {
+        if (id >= mapped) {
+            byte[] text = added.get(id - mapped);
+            return indexOf(text, 0, text.length, q) >= 0;
+        }
+        int from = starts[id], to = end(id);
+        outer: for (int i = from; i + q.length <= to; ++i) {
+            for (int j = 0; j < q.length; ++j) {
+                if (map.get(i + j) != q[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] text, int from, int to, byte[] q) {
+        outer: for (int i = from; i + q.length <= to; ++i) {
+            for (int j = 0; j < q.length; ++j) {
+                if (text[i + j] != q[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        index = new Trigrams();
+        byte[] text = new byte[256];
+        for (int id = 0; id < mapped; ++id) {
+            int from = starts[id], length = end(id) - from;
+            if (length > text.length)
+                text = new byte[Math.max(length, text.length * 2)];
+            map.get(from, text, 0, length);
+            index(id, text, 0, length);
+        }
+        for (int i = 0; i < added.size(); ++i)
+            index(mapped + i, added.get(i), 0, added.get(i).length);
+    }
+
+    private void index(int id, byte[] text, int from, int to) {
+        for (int i = from; i + 3 <= to; ++i)
+            index.add(trigram(text, i), id);
+    }
+
+    private static int trigram(byte[] b, int i) {
+        return (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff);
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+/*
+ * Pipelines started with "&". Each runs on its own daemon thread, so a job
+ * left running never keeps the shell alive by itself: Main waits for jobs at
+ * the end of a script and warns before an interactive exit stops them. A
+ * job's result is kept here until jobs, wait or fg has reported it. Numbers
+ * start again from 1 once the table is empty.
+ */
+public class JobTable {
+    static final class Job {
+        final int id;
+        final String command;
+        private final Thread thread;
+        private volatile Terminal.Execution result;
+
+        private Job(int id, String command, Supplier<Terminal.Execution> work) {
+            this.id = id;
+            this.command = command;
+            this.thread = new Thread(() -> result = complete(work), "job-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        boolean done() {
+            return result != null;
+        }
+
+        // The job's result, or null while it is still running
+        Terminal.Execution result() {
+            return result;
+        }
+
+        // The job's result, blocking until it has one
+        Terminal.Execution await() throws InterruptedException {
+            thread.join();
+            return result;
+        }
+
+        private static Terminal.Execution complete(Supplier<Terminal.Execution> work) {
+            Terminal.Execution exec;
+            try {
+                exec = work.get();
+            } catch (RuntimeException e) {
+                exec = new Terminal.Execution();
+                exec.exit_code = Terminal.Execution.ExitCode.ERROR;
+                exec.output = e + "\n";
+            }
+            if (exec == null) {
+                // exit only ends the job, not the shell
+                exec = new Terminal.Execution();
+                exec.exit_code = Terminal.Execution.ExitCode.SUCCESS;
+            }
+            return exec;
+        }
+    };
+
+    private final LinkedHashMap<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+    private int next = 1;
+
+    synchronized Job start(String command, Supplier<Terminal.Execution> work) {
+        if (jobs.isEmpty())
+            next = 1;
+        Job job = new Job(next++, command, work);
+        jobs.put(job.id, job);
+        job.thread.start();
+        return job;
+    }
+
+    // Job number id, or null if there is none
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    // The most recently started job, or null if there are none
+    synchronized Job last() {
+        Job last = null;
+        for (Job job : jobs.values())
+            last = job;
+        return last;
+    }
+
+    // Every job, oldest first
+    synchronized List<Job> all() {
+        return new ArrayList<Job>(jobs.values());
+    }
+
+    synchronized void remove(Job job) {
+        jobs.remove(job.id, job);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Where each line of a file starts, found by scanning memory mapped windows of
+ * the file only as far as callers have asked for. The first page of a huge
+ * file therefore costs the same as that of a small one. Indexes are kept per
+ * path and reused while the file's size and modification time are unchanged.
+ */
+public class LineIndex {
+    private static final long WINDOW = 64L << 20;
+    private static final int CHUNK = 64 * 1024;
+    private static final int CACHED = 16;
+    private static final LinkedHashMap<Path, LineIndex> cache = new LinkedHashMap<Path, LineIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+            return size() > CACHED;
+        }
+    };
+
+    private final long size;
+    private final FileTime modified;
+    // starts[0 .. lines) are the offsets of the lines found so far
+    private long[] starts;
+    private int lines;
+    private long scanned;
+
+    private LineIndex(long size, FileTime modified) {
+        this.size = size;
+        this.modified = modified;
+        this.starts = new long[1024];
+        this.lines = size > 0 ? 1 : 0;
+        this.scanned = 0;
+    }
+
+    static LineIndex of(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (cache) {
+            LineIndex index = cache.get(path);
+            if (index == null || index.size != attrs.size() || !index.modified.equals(attrs.lastModifiedTime())) {
+                index = new LineIndex(attrs.size(), attrs.lastModifiedTime());
+                cache.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Whether line n (from 0) exists, scanning just far enough to know where it ends
+    synchronized boolean has(FileChannel file, int n) throws IOException {
+        scan(file, n + 1, -1);
+        return n < lines;
+    }
+
+    // The line holding byte offset, or the last line if offset is past the end
+    synchronized int lineAt(FileChannel file, long offset) throws IOException {
+        scan(file, -1, offset);
+        int i = Arrays.binarySearch(starts, 0, lines, offset);
+        return Math.max(0, i >= 0 ? i : -i - 2);
+    }
+
+    // Every line, which means reading the whole file
+    synchronized int count(FileChannel file) throws IOException {
+        scan(file, Integer.MAX_VALUE, -1);
+        return lines;
+    }
+
+    // Text of line n without its newline; has(file, n) must have returned true
+    String line(FileChannel file, int n) throws IOException {
+        long start, end;
+        synchronized (this) {
+            start = starts[n];
+            end = n + 1 < lines ? starts[n + 1] : size;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(end - start, Integer.MAX_VALUE - 8));
+        while (bytes.hasRemaining() && file.read(bytes, start + bytes.position()) > 0)
+            ;
+        int length = bytes.position();
+        if (length > 0 && bytes.get(length - 1) == '\n')
+            --length;
+        return new String(bytes.array(), 0, length);
+    }
+
+    // Scans until more than lineTarget lines are known and offset byteTarget is passed
+    private void scan(FileChannel file, long lineTarget, long byteTarget) throws IOException {
+        byte[] chunk = null;
+        while (scanned < size && (lines <= lineTarget || scanned <= byteTarget)) {
+            long length = Math.min(WINDOW, size - scanned);
+            MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, scanned, length);
+            if (chunk == null)
+                chunk = new byte[CHUNK];
+            long base = scanned;
+            int done = 0;
+            // Copying out in chunks lets the search loop run over a plain array
+            while (done < length && (lines <= lineTarget || scanned <= byteTarget)) {
+                int n = (int) Math.min(CHUNK, length - done);
+                window.get(chunk, 0, n);
+                int i = 0;
+                while (i < n && (lines <= lineTarget || base + done + i <= byteTarget)) {
+                    if (chunk[i++] == '\n' && base + done + i < size)
+                        add(base + done + i);
+                }
+                done += i;
+                scanned = base + done;
+                if (i < n)
+                    break;
+            }
+        }
+    }
+
+    private void add(long start) {
+        if (lines == starts.length)
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        starts[lines++] = start;
+    }
+}
@@ -1,51 +1,205 @@
-import java.util.Scanner;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class Main{
-    public static void main(String args[]){
-        Scanner reader = new Scanner(System.in);
-        boolean running = true;
+    static final OutputSink out = new OutputSink(FileDescriptor.out, 256 * 1024);
+    static final OutputSink err = new OutputSink(FileDescriptor.err, 8 * 1024);
+    static final int COMPLETIONS = 100;
+
+    /*
+     * Usage: java Main [-e] [script]
+     *        java Main --server address
+     *        java Main --connect address
+     * Without a script, commands come from the console, interactively when it
+     * is a terminal and as a batch otherwise. -e stops a batch at the first
+     * failing command. The exit status is the last command's ExitCode
+     * ordinal, so 0 means success. --server serves sessions on address, a
+     * port, host:port or a Unix socket path, and --connect runs the console
+     * as a session of such a server, proving it runs as the same user with
+     * the token in ~/.simple_shell_token. Interactively, a line ending in Tab
+     * lists the paths its last word could complete to instead of running.
+     */
+    public static void main(String args[]) throws IOException{
+        boolean stopOnError = false;
+        String script = null;
+        String server = null;
+        String connect = null;
+        for(int i = 0; i < args.length; ++i){
+            if(args[i].equals("-e"))
+                stopOnError = true;
+            else if(args[i].equals("--server") && i + 1 < args.length)
+                server = args[++i];
+            else if(args[i].equals("--connect") && i + 1 < args.length)
+                connect = args[++i];
+            else
+                script = args[i];
+        }
         Terminal term = new Terminal();
+        int status;
+        if(server != null){
+            try{
+                new ShellServer(term).serve(ShellServer.address(server));
+                return;
+            }catch(IOException e){
+                err.print("Can't serve on " + server + ": " + e.getMessage() + "\n");
+                status = Terminal.Execution.ExitCode.READ_WRITE_ERROR.ordinal();
+            }
+        }else if(connect != null){
+            try{
+                status = ShellServer.connect(ShellServer.address(connect), Terminal.console, out, err, System.console() != null);
+            }catch(IOException e){
+                err.print("Can't connect to " + connect + ": " + e.getMessage() + "\n");
+                status = Terminal.Execution.ExitCode.READ_WRITE_ERROR.ordinal();
+            }
+        }else if(script != null){
+            term.setInteractive(false);
+            try(BufferedReader in = Files.newBufferedReader(Paths.get(script))){
+                status = batch(term, in, stopOnError);
+            }catch(IOException e){
+                err.print("Can't read script " + script + "\n");
+                status = Terminal.Execution.ExitCode.READ_WRITE_ERROR.ordinal();
+            }
+        }else if(System.console() == null){
+            term.setInteractive(false);
+            status = batch(term, Terminal.console, stopOnError);
+        }else{
+            status = interactive(term);
+        }
+        out.flush();
+        err.flush();
+        System.exit(status);
+    }
+
+    static int interactive(Terminal term) throws IOException{
+        boolean running = true;
+        boolean warned = false;
+        int status = 0;
         while(running){
             // Read command from standard input
-            System.out.print("$ ");
-            String cmd = reader.nextLine();
+            out.flush();
+            err.flush();
+            out.print("$ ");
+            out.flush();
+            String line = Terminal.console.readLine();
+            if(line != null && line.endsWith("\t")){
+                complete(term, line.substring(0, line.length() - 1));
+                continue;
+            }
+            String cmd = line == null ? "exit" : line;
 
-            Terminal.Execution exec = term.run(cmd, null);
+            Terminal.Execution exec = term.run(cmd, null, out);
+            // Once run, so rsearch doesn't find itself
+            if(line != null)
+                term.record(line);
 
             if(exec == null){
-                System.out.println("Exiting...");
+                // Leaving would stop running jobs, so only when asked twice in a row
+                int jobs = term.running();
+                if(jobs > 0 && !warned){
+                    err.print("There " + (jobs == 1 ? "is 1 running job" : "are " + jobs + " running jobs")
+                            + ", exit again to stop them.\n");
+                    warned = true;
+                    continue;
+                }
+                out.print("Exiting...\n");
                 running = false;
                 continue;
             }
+            warned = false;
+            report(exec);
+            status = exec.exit_code.ordinal();
+        }
+        return status;
+    }
 
-            if(exec.exit_code == Terminal.Execution.ExitCode.SUCCESS){
-                if(exec.output != null)
-                    System.out.print(exec.output);
-            }else{
-                switch(exec.exit_code){
-                    case ERROR:
-                        System.err.println("Error occurred");
-                        break;
-                    case INVALID_ARGUMENTS:
-                        System.err.println("Invalid number of arguments supplied!!");
-                        break;
-                    case COMMAND_NOT_FOUND:
-                        System.err.println("Command not found");
-                        break;
-                    case SYNTAX_ERROR:
-                        System.err.println("Input is not recognized");
-                        break;
-                    case READ_WRITE_ERROR:
-                        System.err.println("File I/O Error");
-                        break;
-                    default:
-                        System.err.println("Something wrong happened");
-                        break;
-                }
-                if(exec.output != null)
-                    System.err.print(exec.output);
-            }
+    /*
+     * Lists the paths the last word of line could complete to, the first
+     * COMPLETIONS of them, then line completed as far as they all agree.
+     * The console is line buffered, so that is as close to Tab as it gets.
+     */
+    static void complete(Terminal term, String line) throws IOException{
+        int start = Math.max(line.lastIndexOf(' '), line.lastIndexOf('\t')) + 1;
+        PathCompleter.Completion found;
+        try{
+            found = term.complete(line.substring(start), COMPLETIONS);
+        }catch(IOException e){
+            err.print("Can't complete " + line.substring(start) + "\n");
+            return;
+        }
+        if(found.count > 1){
+            for(String word : found.names)
+                out.print(word + "\n");
+            if(found.count > found.names.size())
+                out.print("... " + (found.count - found.names.size()) + " more\n");
+        }
+        if(found.count > 0)
+            out.print(line.substring(0, start) + found.common + "\n");
+    }
+
+    /*
+     * Runs every line of in without prompting, skipping blanks and # comments,
+     * then waits for the jobs they started so none is cut off halfway.
+     */
+    static int batch(Terminal term, BufferedReader in, boolean stopOnError) throws IOException{
+        int status = 0;
+        String cmd;
+        while((cmd = in.readLine()) != null){
+            String trimmed = cmd.trim();
+            if(trimmed.isEmpty() || trimmed.charAt(0) == '#')
+                continue;
+            Terminal.Execution exec = term.run(cmd, null, out);
+            if(exec == null)
+                break;
+            report(exec);
+            status = exec.exit_code.ordinal();
+            if(stopOnError && exec.exit_code != Terminal.Execution.ExitCode.SUCCESS)
+                break;
+        }
+        if(term.running() > 0){
+            out.flush();
+            term.await(null);
+        }
+        return status;
+    }
+
+    static void report(Terminal.Execution exec) throws IOException{
+        String message = describe(exec);
+        if(message != null){
+            // Keep the message after whatever the command printed
+            out.flush();
+            err.print(message);
+            err.flush();
+        }
+    }
+
+    // What to tell the user about exec, or null when it succeeded
+    static String describe(Terminal.Execution exec){
+        String message;
+        switch(exec.exit_code){
+            case SUCCESS:
+                return null;
+            case ERROR:
+                message = "Error occurred\n";
+                break;
+            case INVALID_ARGUMENTS:
+                message = "Invalid number of arguments supplied!!\n";
+                break;
+            case COMMAND_NOT_FOUND:
+                message = "Command not found\n";
+                break;
+            case SYNTAX_ERROR:
+                message = "Input is not recognized\n";
+                break;
+            case READ_WRITE_ERROR:
+                message = "File I/O Error\n";
+                break;
+            default:
+                message = "Something wrong happened\n";
+                break;
         }
-        reader.close();
+        return exec.output != null ? message + exec.output : message;
     }
 };
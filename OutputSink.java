@@ -0,0 +1,70 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/*
+ * Buffers everything written to a file descriptor so a command printing many
+ * small lines costs one write(2) per buffer rather than one per line. The
+ * buffer goes out when it fills, on flush(), and whenever Main shows a prompt.
+ */
+public class OutputSink extends OutputStream {
+    private final FileOutputStream fd;
+    private final byte[] buffer;
+    private int count;
+
+    OutputSink(FileDescriptor fd, int size) {
+        this.fd = new FileOutputStream(fd);
+        this.buffer = new byte[size];
+        this.count = 0;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (count == buffer.length)
+            drain();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.length - count)
+            drain();
+        if (len >= buffer.length) {
+            // Larger than the buffer, copying it first would only cost time
+            fd.write(b, off, len);
+            return;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    void print(String s) throws IOException {
+        write(s.getBytes());
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    // Empties the buffer first so bytes sent through the channel stay in order
+    synchronized FileChannel getChannel() throws IOException {
+        drain();
+        return fd.getChannel();
+    }
+
+    // The descriptor belongs to the process, only the buffer is ours to close
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            fd.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -1,172 +1,180 @@
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Parser{
-    public enum Command{
-        NONE, EXIT, COPY, MOVE, CHANGE_DIR, LIST_DIR, CONCATENATE, MORE, CREATE_DIR, DELETE_DIR, DELETE_FILE, PRINT_ARGS, PRINT_DATE, PRINT_HELP, PRINT_WORKING_DIR, CLEAR_SCREEN,
-        PIPE, OUTPUT_REDIRECT, OUTPUT_REDIRECT_APPEND, NOT_REGISTERED
+    /*
+     * One command of a pipeline, by name, with its arguments and optional
+     * output redirection. Parsed trees are cached and shared, so nothing in
+     * them may be modified after parsing.
+     */
+    static final class Stage{
+        final String name;
+        final String[] args;
+        /*
+         * For each argument with an unquoted *, ? or [, the glob it expands
+         * to, with \ before the characters that were quoted; null for the
+         * others, and null altogether when no argument is a glob.
+         */
+        final String[] globs;
+        final String redirect;
+        final boolean append;
+
+        Stage(ArrayList<String> words, ArrayList<String> globs, String redirect, boolean append){
+            if(words.isEmpty()){
+                this.name = "";
+                this.args = new String[0];
+                this.globs = null;
+            }else{
+                this.name = words.get(0);
+                this.args = words.subList(1, words.size()).toArray(new String[0]);
+                boolean any = false;
+                for(int i = 1; i < globs.size(); ++i)
+                    any |= globs.get(i) != null;
+                this.globs = any ? globs.subList(1, globs.size()).toArray(new String[0]) : null;
+            }
+            this.redirect = redirect;
+            this.append = append;
+        }
     };
 
-    private Command cmd;
-    private String[] args;
+    // Stages joined by "|", left to right, run as a job when ended by "&"
+    static final class Pipeline{
+        final Stage[] stages;
+        final boolean background;
+
+        Pipeline(ArrayList<Stage> stages, boolean background){
+            this.stages = stages.toArray(new Stage[0]);
+            this.background = background;
+        }
+    };
+
+    private static final int CACHE_SIZE = 256;
+    private final LinkedHashMap<String, Pipeline> cache;
 
     Parser(){
-        this.cmd = null;
-        this.args = null;
+        this.cache = new LinkedHashMap<String, Pipeline>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pipeline> eldest){
+                return size() > CACHE_SIZE;
+            }
+        };
     }
 
-    public boolean parse(String input){
-        /*
-         * Precendence: (|) (>,>>) (commands)
-         */
-        // Partition command into words
-        int pipe = -1, oredirect = Integer.MAX_VALUE, aredirect = Integer.MAX_VALUE;
-        ArrayList<String> parts = new ArrayList<String>();
-        String current = "";
-        Character escape = null;
-        for(int i = 0; i < input.length(); ++i){
-            // Handle quoted partitions
-            if(input.charAt(i) == '\'' || input.charAt(i) == '"'){
-                if(escape != null && input.charAt(i) == escape){
-                    escape = null;
-                    if(!current.equals("")) 
-                        parts.add(current);
-                    current = "";
-                }else if(escape != null){
-                    current += input.charAt(i);
+    // Returns the tree for input, or null if input is not well formed
+    public Pipeline parse(CharSequence input){
+        String key = input.toString();
+        synchronized(cache){
+            Pipeline p = cache.get(key);
+            if(p != null)
+                return p;
+        }
+        Pipeline p = build(key);
+        if(p != null){
+            synchronized(cache){
+                cache.put(key, p);
+            }
+        }
+        return p;
+    }
+
+    /*
+     * Precendence: (&) (|) (>,>>) (commands)
+     * Single pass: words are cut at <Space>, "|", ">" and ">>" outside quotes
+     * and go straight into the stage being built. An "&" outside quotes may
+     * only end the line. Each word is also spelled as a glob, kept if it has
+     * a *, ? or [ outside quotes.
+     */
+    private static Pipeline build(String input){
+        ArrayList<Stage> stages = new ArrayList<Stage>();
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<String> globs = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        StringBuilder glob = new StringBuilder();
+        boolean magic = false;
+        String redirect = null;
+        boolean append = false;
+        // 0 when no redirection waits for its file, else '>' or 'a' for ">>"
+        char pending = 0;
+        char escape = 0;
+        boolean background = false;
+        final int length = input.length();
+        for(int i = 0; i <= length; ++i){
+            boolean end = i == length;
+            char c = end ? ' ' : input.charAt(i);
+            boolean boundary;
+            if(escape != 0){
+                // Handle quoted partitions
+                if(end)
+                    return null;
+                boundary = c == escape;
+                if(boundary){
+                    escape = 0;
                 }else{
-                    escape = input.charAt(i);
+                    current.append(c);
+                    if(c == '*' || c == '?' || c == '[' || c == ']' || c == '\\')
+                        glob.append('\\');
+                    glob.append(c);
                 }
-            }else if(escape != null){
-                current += input.charAt(i);
+            }else if(c == '\'' || c == '"'){
+                escape = c;
+                continue;
             }else{
-                // Word boundaries are <Space>, "|", ">", ">>"
-                if(input.charAt(i) == ' '){
-                    if(!current.equals("")) 
-                        parts.add(current);
-                    current = "";
-                }else if(input.charAt(i) == '|'){
-                    pipe = i;
-                    break;
-                }else if(input.charAt(i) == '>'){
-                    if(i < input.length() - 1 && input.charAt(i+1) == '>')
-                        aredirect = i;
-                    else
-                        oredirect = i;
-                }else{
-                    current += input.charAt(i);
+                boundary = c == ' ' || c == '\t' || c == '|' || c == '>' || c == '&';
+                if(!boundary){
+                    current.append(c);
+                    if(c == '\\')
+                        glob.append('\\');
+                    glob.append(c);
+                    magic |= c == '*' || c == '?' || c == '[';
                 }
             }
-        }
-        if(escape != null)
-            return false;
-        if(!current.equals("")) 
-            parts.add(current);
-        current = "";
-        if(pipe != -1){
-            String left = input.substring(0, pipe).trim();
-            String right = input.substring(pipe+1).trim();
-            if(left.length() == 0 || right.length() == 0){
-                return false;
+            if(!boundary)
+                continue;
+            if(current.length() > 0){
+                if(pending != 0){
+                    redirect = current.toString();
+                    append = pending == 'a';
+                    pending = 0;
+                }else{
+                    words.add(current.toString());
+                    globs.add(magic ? glob.toString() : null);
+                }
+                current.setLength(0);
+                glob.setLength(0);
+                magic = false;
             }
-            this.args = new String[2];
-            this.args[0] = left;
-            this.args[1] = right;
-            this.cmd = Command.PIPE;
-        }else if(oredirect != Integer.MAX_VALUE || aredirect != Integer.MAX_VALUE){
-            // Precendence left to right
-            if(oredirect < aredirect){
-                String left = input.substring(0, oredirect).trim();
-                String right = input.substring(oredirect+1).trim();
-                if(left.length() == 0 || right.length() == 0){
-                    return false;
+            if(c == '>'){
+                if(pending != 0 || redirect != null)
+                    return null;
+                if(i + 1 < length && input.charAt(i + 1) == '>'){
+                    pending = 'a';
+                    ++i;
+                }else{
+                    pending = '>';
                 }
-                this.args = new String[2];
-                this.args[0] = left;
-                this.args[1] = right;
-                this.cmd = Command.OUTPUT_REDIRECT;
-            }else if(aredirect < oredirect){
-                String left = input.substring(0, aredirect).trim();
-                String right = input.substring(aredirect+2).trim();
-                if(left.length() == 0 || right.length() == 0){
-                    return false;
+            }else if(c == '&'){
+                for(int j = i + 1; j < length; ++j){
+                    if(input.charAt(j) != ' ' && input.charAt(j) != '\t')
+                        return null;
                 }
-                this.args = new String[2];
-                this.args[0] = left;
-                this.args[1] = right;
-                this.cmd = Command.OUTPUT_REDIRECT_APPEND;
-            }
-        }else{
-            if(parts.isEmpty())
-                parts.add("__NO__COMMAND__");
-            this.args = new String[parts.size() - 1];
-            
-            for(int i = 1; i < parts.size(); ++i)
-                this.args[i-1] = parts.get(i);
-
-            switch(parts.get(0)){
-                case "cp":
-                    this.cmd = Command.COPY;
-                    break;
-                case "mv":
-                    this.cmd = Command.MOVE;
-                    break;
-                case "cd":
-                    this.cmd = Command.CHANGE_DIR;
-                    break;
-                case "ls":
-                    this.cmd = Command.LIST_DIR;
-                    break;
-                case "cat":
-                    this.cmd = Command.CONCATENATE;
-                    break;
-                case "more":
-                    this.cmd = Command.MORE;
-                    break;
-                case "mkdir":
-                    this.cmd = Command.CREATE_DIR;
-                    break;
-                case "rmdir":
-                    this.cmd = Command.DELETE_DIR;
-                    break;
-                case "rm":
-                    this.cmd = Command.DELETE_FILE;
-                    break;
-                case "args":
-                    this.cmd = Command.PRINT_ARGS;
-                    break;
-                case "date":
-                    this.cmd = Command.PRINT_DATE;
-                    break;
-                case "help":
-                    this.cmd = Command.PRINT_HELP;
-                    break;
-                case "pwd":
-                    this.cmd = Command.PRINT_WORKING_DIR;
-                    break;
-                case "clear":
-                    this.cmd = Command.CLEAR_SCREEN;
-                    break;
-                case "__NO__COMMAND__":
-                    this.cmd = Command.NONE;
-                    break;
-                case "exit":
-                    this.cmd = Command.EXIT;
-                    break;
-                default:
-                    this.cmd = Command.NOT_REGISTERED;
-                    break;
+                background = true;
+                // Close the last stage on the next pass
+                i = length - 1;
+            }else if(c == '|' || end){
+                if(pending != 0)
+                    return null;
+                if(words.isEmpty() && (redirect != null || c == '|' || !stages.isEmpty() || background))
+                    return null;
+                stages.add(new Stage(words, globs, redirect, append));
+                words.clear();
+                globs.clear();
+                redirect = null;
+                append = false;
             }
         }
-        return true;
-    }
-
-    public Command getCommand(){
-        if(this.cmd == null)
-            return Command.NONE;
-        return this.cmd;
-    }
-
-    public String[] getArguments(){
-        return this.args;
+        return new Pipeline(stages, background);
     }
 };
@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Remembers path resolutions, existence/type checks and small directory
+ * listings for one Terminal. Nothing about a path is cached unless its
+ * directory is registered with a WatchService; any create or delete event in
+ * that directory drops what was cached there. Events arrive asynchronously,
+ * so the shell's own commands call invalidate() for what they change.
+ */
+public class PathCache {
+    enum Kind {
+        MISSING, FILE, DIRECTORY, OTHER
+    };
+
+    // Listings longer than this are streamed every time instead of kept
+    static final int LISTING_LIMIT = 4096;
+    static final int WATCH_LIMIT = 64;
+
+    private final LinkedHashMap<String, String> resolved;
+    private final LinkedHashMap<Path, Kind> kinds;
+    private final LinkedHashMap<Path, List<String>> listings;
+    private final LinkedHashMap<Path, WatchKey> watched;
+    private WatchService watcher;
+
+    PathCache(int capacity) {
+        this.resolved = lru(capacity);
+        this.kinds = lru(capacity);
+        this.listings = lru(Math.max(1, capacity / 64));
+        this.watched = new LinkedHashMap<Path, WatchKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, WatchKey> eldest) {
+                if (size() <= WATCH_LIMIT)
+                    return false;
+                eldest.getValue().cancel();
+                purge(eldest.getKey());
+                return true;
+            }
+        };
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            this.watcher = null;
+        }
+    }
+
+    private static <K, V> LinkedHashMap<K, V> lru(final int capacity) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Absolute, normalized form of path relative to cwd
+    synchronized String expand(String cwd, String path) {
+        String key = cwd + '\0' + path;
+        String p = resolved.get(key);
+        if (p == null) {
+            Path abs = Paths.get(path);
+            if (!abs.isAbsolute())
+                abs = Paths.get(cwd).resolve(path);
+            p = abs.normalize().toAbsolutePath().toString();
+            resolved.put(key, p);
+        }
+        return p;
+    }
+
+    boolean exists(Path p) {
+        return kind(p) != Kind.MISSING;
+    }
+
+    boolean isFile(Path p) {
+        return kind(p) == Kind.FILE;
+    }
+
+    boolean isDirectory(Path p) {
+        return kind(p) == Kind.DIRECTORY;
+    }
+
+    // Symbolic links are followed, like File.isFile() and File.isDirectory()
+    synchronized Kind kind(Path p) {
+        drain();
+        Kind k = kinds.get(p);
+        if (k != null)
+            return k;
+        boolean cacheable = p.getParent() != null && watch(p.getParent());
+        if (Files.isRegularFile(p))
+            k = Kind.FILE;
+        else if (Files.isDirectory(p))
+            k = Kind.DIRECTORY;
+        else if (Files.exists(p))
+            k = Kind.OTHER;
+        else
+            k = Kind.MISSING;
+        if (cacheable)
+            kinds.put(p, k);
+        return k;
+    }
+
+    /*
+     * Cached entry names of dir, or null if they have to be read. Watching
+     * starts here, before the caller reads the directory, so a change made
+     * while it is being read still invalidates what remember() stores.
+     */
+    synchronized List<String> listing(Path dir) {
+        drain();
+        List<String> names = listings.get(dir);
+        if (names == null)
+            watch(dir);
+        return names;
+    }
+
+    synchronized void remember(Path dir, List<String> names) {
+        if (names.size() <= LISTING_LIMIT && watched.containsKey(dir))
+            listings.put(dir, names);
+    }
+
+    // Forgets p, everything below it and its parent's listing
+    synchronized void invalidate(Path p) {
+        kinds.remove(p);
+        listings.remove(p);
+        if (p.getParent() != null)
+            listings.remove(p.getParent());
+        for (Iterator<Path> it = kinds.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(p))
+                it.remove();
+        }
+        for (Iterator<Path> it = listings.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(p))
+                it.remove();
+        }
+    }
+
+    private boolean watch(Path dir) {
+        if (watcher == null)
+            return false;
+        if (watched.get(dir) != null)
+            return true;
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(dir, key);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private void drain() {
+        if (watcher == null)
+            return;
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    purge(dir);
+                else
+                    invalidate(dir.resolve((Path) event.context()));
+            }
+            listings.remove(dir);
+            if (!key.reset()) {
+                // Directory is gone or unreachable
+                watched.remove(dir);
+                purge(dir);
+            }
+        }
+    }
+
+    // Drops everything learned through dir's watch
+    private void purge(Path dir) {
+        listings.remove(dir);
+        for (Iterator<Path> it = kinds.keySet().iterator(); it.hasNext();) {
+            Path parent = it.next().getParent();
+            if (parent != null && parent.equals(dir))
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Completes names in directories from a prefix trie of each directory's
+ * entries. A directory is listed only the first time something in it is
+ * completed, and again only once its modification time has moved on, so a
+ * completion costs one stat and a walk down the trie. The tries of the most
+ * recently used directories are kept; cd counts as a use.
+ */
+public class PathCompleter {
+    static final int DIRECTORIES = 16;
+
+    /*
+     * The matches for one prefix: how many names there are, the longest
+     * prefix they all share and the first of them in order.
+     */
+    static final class Completion {
+        final int count;
+        final String common;
+        final List<String> names;
+
+        Completion(int count, String common, List<String> names) {
+            this.count = count;
+            this.common = common;
+            this.names = names;
+        }
+    };
+
+    /*
+     * The names under a node are the sorted names[lo..hi), all sharing their
+     * first end characters. A child starts with keys[i] at position end.
+     */
+    private static final class Node {
+        final int end;
+        final int lo, hi;
+        final char[] keys;
+        final Node[] children;
+
+        Node(int end, int lo, int hi, char[] keys, Node[] children) {
+            this.end = end;
+            this.lo = lo;
+            this.hi = hi;
+            this.keys = keys;
+            this.children = children;
+        }
+    };
+
+    private static final class Trie {
+        final FileTime modified;
+        final String[] names;
+        final Node root;
+
+        Trie(FileTime modified, String[] names) {
+            this.modified = modified;
+            this.names = names;
+            this.root = names.length == 0 ? null : build(names, 0, names.length, 0);
+        }
+
+        private static Node build(String[] names, int lo, int hi, int depth) {
+            // Sorted, so what the first and last share every name between shares
+            String first = names[lo], last = names[hi - 1];
+            int end = depth, max = Math.min(first.length(), last.length());
+            while (end < max && first.charAt(end) == last.charAt(end))
+                ++end;
+            int i = lo;
+            if (first.length() == end)
+                ++i;
+            ArrayList<Node> children = new ArrayList<Node>();
+            while (i < hi) {
+                char c = names[i].charAt(end);
+                int j = i + 1;
+                while (j < hi && names[j].charAt(end) == c)
+                    ++j;
+                children.add(build(names, i, j, end + 1));
+                i = j;
+            }
+            char[] keys = new char[children.size()];
+            for (int k = 0; k < keys.length; ++k)
+                keys[k] = names[children.get(k).lo].charAt(end);
+            return new Node(end, lo, hi, keys, children.toArray(new Node[0]));
+        }
+
+        // The node holding every name that starts with prefix, or null
+        Node find(String prefix) {
+            Node node = root;
+            int pos = 0;
+            while (node != null) {
+                String name = names[node.lo];
+                int to = Math.min(node.end, prefix.length());
+                for (; pos < to; ++pos) {
+                    if (name.charAt(pos) != prefix.charAt(pos))
+                        return null;
+                }
+                if (prefix.length() <= node.end)
+                    return node;
+                int k = Arrays.binarySearch(node.keys, prefix.charAt(node.end));
+                if (k < 0)
+                    return null;
+                node = node.children[k];
+                ++pos;
+            }
+            return null;
+        }
+    };
+
+    private final LinkedHashMap<Path, Trie> tries = new LinkedHashMap<Path, Trie>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Trie> eldest) {
+            return size() > DIRECTORIES;
+        }
+    };
+
+    // Keeps dir's trie, if it has one, among the recent ones
+    synchronized void visit(Path dir) {
+        tries.get(dir);
+    }
+
+    // Names in dir starting with prefix, at most limit of them listed
+    Completion complete(Path dir, String prefix, int limit) throws IOException {
+        Trie trie = trie(dir);
+        Node node = trie.find(prefix);
+        if (node == null)
+            return new Completion(0, prefix, Collections.<String>emptyList());
+        List<String> names = Arrays.asList(trie.names).subList(node.lo, node.lo + Math.min(node.hi - node.lo, limit));
+        return new Completion(node.hi - node.lo, trie.names[node.lo].substring(0, node.end), names);
+    }
+
+    private Trie trie(Path dir) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(dir);
+        synchronized (this) {
+            Trie trie = tries.get(dir);
+            if (trie != null && trie.modified.equals(modified))
+                return trie;
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries)
+                names.add(entry.getFileName().toString());
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        // Stamped with the time from before listing, so a change during it is seen next time
+        Trie trie = new Trie(modified, sorted);
+        synchronized (this) {
+            tries.put(dir, trie);
+        }
+        return trie;
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * A command the shell can run. CommandRegistry creates one instance on first
+ * use and shares it between every Terminal stage that runs the command, so
+ * implementations must keep no per-call state.
+ */
+public interface ShellCommand {
+    String name();
+
+    // Whether the arguments are acceptable; piped is true when stdin is connected
+    boolean accepts(String[] args, boolean piped);
+
+    // What the command does, for help
+    String description();
+
+    // What the command takes, for args
+    String usage();
+
+    // Returns null to end the shell
+    Terminal.Execution run(Terminal term, String[] args, InputStream stdin, OutputStream stdout);
+}
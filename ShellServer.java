@@ -0,0 +1,316 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.Set;
+
+/*
+ * Serves shell sessions over a local socket, one thread per connection, all in
+ * one JVM so each session starts warm. Every session is a Terminal of its own,
+ * sharing the path and parse caches of the Terminal the server was built on.
+ *
+ * Any local user can reach a loopback port, and a Unix socket as far as its
+ * directory lets them, while sessions run commands as the server's owner. So
+ * the client's first line must be the token kept in a file only the owner can
+ * read, see tokenFile(); a connection sending anything else is closed before
+ * it gets a session. The socket file is made owner only too.
+ *
+ * After that the client sends lines: commands, and whatever a command reads
+ * as typed input. The server answers in frames of a type byte, a big endian int length
+ * and that many bytes: OUTPUT carries command output as it is written,
+ * MESSAGE the error text the console shell would print, and STATUS, sent after
+ * every command, its ExitCode ordinal as an int. The connection is closed
+ * after exit.
+ */
+public class ShellServer {
+    static final byte OUTPUT = 'o';
+    static final byte MESSAGE = 'e';
+    static final byte STATUS = 'x';
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(PosixFilePermission.OWNER_READ,
+            PosixFilePermission.OWNER_WRITE);
+
+    private final Terminal shared;
+    private byte[] token;
+
+    ShellServer(Terminal shared) {
+        this.shared = shared;
+    }
+
+    /*
+     * A port number listens on the loopback interface, host:port on host, and
+     * anything else names a Unix domain socket. Sessions run commands for
+     * anyone who connects, so host must be a loopback address.
+     */
+    static SocketAddress address(String spec) throws IOException {
+        int colon = spec.lastIndexOf(':');
+        String port = spec.substring(colon + 1);
+        if (!port.isEmpty() && port.chars().allMatch(Character::isDigit)) {
+            if (colon < 0)
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port));
+            InetAddress host = InetAddress.getByName(spec.substring(0, colon));
+            if (!host.isLoopbackAddress())
+                throw new IOException(host.getHostAddress() + " is not a loopback address, sessions are local only");
+            return new InetSocketAddress(host, Integer.parseInt(port));
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    // $HOME/.simple_shell_token unless the shell.token property names another file
+    static Path tokenFile() {
+        String name = System.getProperty("shell.token");
+        if (name != null)
+            return Paths.get(name);
+        return Paths.get(System.getProperty("user.home"), ".simple_shell_token");
+    }
+
+    /*
+     * The token in tokenFile(), created with a random one if there is none yet.
+     * A file others could read proves nothing, so it is refused.
+     */
+    static String token(boolean create) throws IOException {
+        Path file = tokenFile();
+        if (create && !Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            try {
+                Files.writeString(Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY)),
+                        HexFormat.of().formatHex(random) + "\n");
+            } catch (FileAlreadyExistsException e) {
+                // Another server got there first, its token will do
+            }
+        }
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            throw new IOException("no token in " + file + ", it is written by the server");
+        }
+        if (!OWNER_ONLY.containsAll(permissions))
+            throw new IOException(file + " can be read by others, it should be mode 600");
+        String token = Files.readString(file).trim();
+        if (token.isEmpty())
+            throw new IOException(file + " holds no token");
+        return token;
+    }
+
+    // Deletes path if it is a socket, left by an earlier server; anything else there is kept
+    private static void removeSocket(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isOther())
+            throw new IOException(path + " exists and is not a socket");
+        Files.deleteIfExists(path);
+    }
+
+    private static SocketChannel open(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress)
+            return SocketChannel.open(StandardProtocolFamily.UNIX);
+        SocketChannel channel = SocketChannel.open();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    // Accepts sessions until the process is stopped
+    void serve(SocketAddress address) throws IOException {
+        token = token(true).getBytes(StandardCharsets.UTF_8);
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress) {
+            // A socket file left by an earlier server would fail the bind
+            removeSocket(((UnixDomainSocketAddress) address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        try (ServerSocketChannel listening = server) {
+            listening.bind(address, 128);
+            if (address instanceof UnixDomainSocketAddress)
+                Files.setPosixFilePermissions(((UnixDomainSocketAddress) address).getPath(), OWNER_ONLY);
+            int sessions = 0;
+            while (true) {
+                SocketChannel client = listening.accept();
+                if (!(address instanceof UnixDomainSocketAddress))
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread session = new Thread(() -> session(client), "session-" + ++sessions);
+                session.setDaemon(true);
+                session.start();
+            }
+        } finally {
+            if (address instanceof UnixDomainSocketAddress)
+                removeSocket(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+
+    private void session(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            Frames out = new Frames(channel, 64 * 1024);
+            String presented = in.readLine();
+            if (presented == null || !MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8))) {
+                out.send(MESSAGE, ByteBuffer.wrap("Wrong token, see the server's token file\n".getBytes()));
+                out.send(STATUS, ByteBuffer.allocate(4).putInt(0, Terminal.Execution.ExitCode.ERROR.ordinal()));
+                return;
+            }
+            Terminal term = shared.session(in);
+            String cmd;
+            while ((cmd = in.readLine()) != null) {
+                Terminal.Execution exec = term.run(cmd, null, out);
+                if (exec == null)
+                    break;
+                out.flush();
+                String message = Main.describe(exec);
+                if (message != null)
+                    out.send(MESSAGE, ByteBuffer.wrap(message.getBytes()));
+                out.send(STATUS, ByteBuffer.allocate(4).putInt(0, exec.exit_code.ordinal()));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away, nothing is left to tell it
+        }
+    }
+
+    /*
+     * Connects to a server and stands in for the console: the token goes
+     * first, then lines from in are sent as typed, output goes to out and
+     * messages to err. Returns the last command's status.
+     */
+    static int connect(SocketAddress address, BufferedReader in, OutputSink out, OutputSink err, boolean prompt)
+            throws IOException {
+        try (SocketChannel channel = open(address)) {
+            final String token = token(false);
+            channel.connect(address);
+            Thread typing = new Thread(() -> {
+                try {
+                    String line = token;
+                    do {
+                        ByteBuffer bytes = ByteBuffer.wrap((line + '\n').getBytes(StandardCharsets.UTF_8));
+                        while (bytes.hasRemaining())
+                            channel.write(bytes);
+                    } while ((line = in.readLine()) != null);
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // The server closed the connection
+                }
+            }, "typing");
+            typing.setDaemon(true);
+            typing.start();
+            int status = 0;
+            ByteBuffer header = ByteBuffer.allocate(5);
+            ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+            if (prompt)
+                prompt(out);
+            while (fill(channel, header.clear())) {
+                byte type = header.get(0);
+                int length = header.getInt(1);
+                if (payload.capacity() < length)
+                    payload = ByteBuffer.allocate(length);
+                payload.clear().limit(length);
+                if (!fill(channel, payload))
+                    break;
+                if (type == OUTPUT) {
+                    out.write(payload.array(), 0, length);
+                } else if (type == MESSAGE) {
+                    out.flush();
+                    err.write(payload.array(), 0, length);
+                    err.flush();
+                } else if (type == STATUS) {
+                    status = payload.getInt(0);
+                    if (prompt)
+                        prompt(out);
+                }
+            }
+            out.flush();
+            return status;
+        }
+    }
+
+    private static void prompt(OutputSink out) throws IOException {
+        out.print("$ ");
+        out.flush();
+    }
+
+    // Reads until buffer is full; false if the connection ended first
+    private static boolean fill(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Output of one session, buffered and sent as OUTPUT frames. Background
+     * jobs share it with the foreground, so each frame goes out whole.
+     */
+    static final class Frames extends OutputStream {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer;
+        private final ByteBuffer header = ByteBuffer.allocate(5);
+
+        Frames(SocketChannel channel, int size) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (!buffer.hasRemaining())
+                flush();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining())
+                flush();
+            if (len >= buffer.capacity())
+                send(OUTPUT, ByteBuffer.wrap(b, off, len));
+            else
+                buffer.put(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (buffer.position() == 0)
+                return;
+            buffer.flip();
+            send(OUTPUT, buffer);
+            buffer.clear();
+        }
+
+        synchronized void send(byte type, ByteBuffer payload) throws IOException {
+            header.clear();
+            header.put(type).putInt(payload.remaining()).flip();
+            ByteBuffer[] frame = { header, payload };
+            while (payload.hasRemaining() || header.hasRemaining())
+                channel.write(frame);
+        }
+    };
+}
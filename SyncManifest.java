@@ -0,0 +1,150 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Block hashes of the files cp -c has written under a directory, kept in a
+ * .sync-manifest file there between runs. An entry is trusted only while the
+ * file still has the size and modification time it had when hashed, so a
+ * file changed by anything else is simply hashed again.
+ */
+public class SyncManifest {
+    static final String NAME = ".sync-manifest";
+    static final int BLOCK = 1 << 20;
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final byte[][] hashes;
+
+        Entry(long size, long modified, byte[][] hashes) {
+            this.size = size;
+            this.modified = modified;
+            this.hashes = hashes;
+        }
+    };
+
+    private final Path root;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean changed = false;
+
+    private SyncManifest(Path root) {
+        this.root = root;
+    }
+
+    // The manifest kept in root, empty if there is none yet
+    static SyncManifest load(Path root) throws IOException {
+        SyncManifest manifest = new SyncManifest(root);
+        try (BufferedReader in = Files.newBufferedReader(root.resolve(NAME))) {
+            Base64.Decoder base64 = Base64.getDecoder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                // size, mtime in ns, hashes joined by ',', then the name, which may hold tabs
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4)
+                    continue;
+                String[] encoded = fields[2].isEmpty() ? new String[0] : fields[2].split(",");
+                byte[][] hashes = new byte[encoded.length][];
+                for (int i = 0; i < encoded.length; ++i)
+                    hashes[i] = base64.decode(encoded[i]);
+                manifest.entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), hashes));
+            }
+        } catch (NoSuchFileException e) {
+            // First run here
+        } catch (IllegalArgumentException e) {
+            // Damaged, start over; every file is hashed again
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    // file's block hashes if they were recorded for its current contents, else null
+    byte[][] hashes(Path file, BasicFileAttributes attrs) {
+        Entry entry = entries.get(key(file));
+        if (entry == null || entry.size != attrs.size() || entry.modified != nanos(attrs))
+            return null;
+        return entry.hashes;
+    }
+
+    void put(Path file, BasicFileAttributes attrs, byte[][] hashes) {
+        String key = key(file);
+        if (key.indexOf('\n') >= 0)
+            return;
+        entries.put(key, new Entry(attrs.size(), nanos(attrs), hashes));
+        changed = true;
+    }
+
+    // Writes the manifest back if anything was added, replacing the old one at once
+    void save() throws IOException {
+        if (!changed)
+            return;
+        Path tmp = Files.createTempFile(root, NAME, ".part");
+        try {
+            Base64.Encoder base64 = Base64.getEncoder();
+            try (BufferedWriter out = Files.newBufferedWriter(tmp)) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    StringBuilder line = new StringBuilder();
+                    line.append(entry.size).append('\t').append(entry.modified).append('\t');
+                    for (int i = 0; i < entry.hashes.length; ++i) {
+                        if (i > 0)
+                            line.append(',');
+                        line.append(base64.encodeToString(entry.hashes[i]));
+                    }
+                    out.write(line.append('\t').append(e.getKey()).append('\n').toString());
+                }
+            }
+            Files.move(tmp, root.resolve(NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // SHA-256 of every BLOCK of file, the last one possibly shorter
+    static byte[][] hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            byte[][] hashes = new byte[(int) ((size + BLOCK - 1) / BLOCK)][];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK);
+            for (int i = 0; i < hashes.length; ++i) {
+                buffer.clear();
+                long position = (long) i * BLOCK;
+                while (buffer.hasRemaining() && in.read(buffer, position + buffer.position()) > 0)
+                    ;
+                buffer.flip();
+                digest.update(buffer);
+                hashes[i] = digest.digest();
+            }
+            return hashes;
+        }
+    }
+
+    private String key(Path file) {
+        return root.relativize(file).toString();
+    }
+
+    private static long nanos(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -1,21 +1,64 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiPredicate;
 
 
 public class Terminal {
     final static String _home = System.getProperty("user.dir") + File.separatorChar;
-    private Path dir;
+    // Most bytes of arguments a command's globs may expand to, -Dshell.argmax to change
+    static final long ARG_MAX = Long.getLong("shell.argmax", 8L << 20);
+    // Shared by every reader of the console so none of them buffers away another's input
+    final static BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+    // Read by jobs and pipe stages on other threads
+    private volatile Path dir;
+    private volatile boolean interactive;
+    private final PathCache cache;
+    private final PathCompleter completer;
+    private final Parser parser;
+    private final CommandRegistry commands;
+    private final JobTable jobs;
+    private final CommandMetrics metrics;
+    private final History history;
+    // Where the user's typing comes from: answers to prompts, cat's lines
+    private final BufferedReader input;
 
     static class Execution {
         enum ExitCode {
@@ -29,6 +72,43 @@ public class Terminal {
     Terminal() {
         // Set home to shell location
         this.dir = Paths.get(_home);
+        this.interactive = true;
+        this.cache = new PathCache(1024);
+        this.completer = new PathCompleter();
+        this.parser = new Parser();
+        this.commands = CommandRegistry.builtins();
+        this.jobs = new JobTable();
+        this.metrics = new CommandMetrics();
+        this.history = History.of(History.defaultFile());
+        this.input = console;
+    }
+
+    // Shares parent's caches and commands, everything else is given
+    private Terminal(Terminal parent, Path dir, JobTable jobs, BufferedReader input) {
+        this.dir = dir;
+        this.interactive = false;
+        this.cache = parent.cache;
+        this.completer = parent.completer;
+        this.parser = parent.parser;
+        this.commands = parent.commands;
+        this.jobs = jobs;
+        this.metrics = parent.metrics;
+        this.history = parent.history;
+        this.input = input;
+    }
+
+    /*
+     * A new session at home, for a user typing into input rather than the
+     * console. It has its own directory and jobs, while path lookups and
+     * parsed commands are cached, and metrics and history kept, for all sessions together.
+     */
+    Terminal session(BufferedReader input) {
+        return new Terminal(this, Paths.get(_home), new JobTable(), input);
+    }
+
+    // Whether a user is there to answer prompts such as more's pages
+    void setInteractive(boolean interactive) {
+        this.interactive = interactive;
     }
 
     String getCurrentDir() {
@@ -36,140 +116,130 @@ public class Terminal {
     }
 
     String expandPath(String path) {
-        Path p = Paths.get(path);
-        if (!p.isAbsolute()) {
-            p = Paths.get(getCurrentDir() + File.separatorChar + path);
-        }
-        return p.normalize().toAbsolutePath().toString();
+        return cache.expand(getCurrentDir(), path);
     }
 
-    Execution run(String cmd, String stdin) {
-        Parser parser = new Parser();
-        Execution exec = new Execution();
-        if (!parser.parse(cmd)) {
+    /*
+     * Runs cmd reading from stdin (null means the user's input) and streaming its
+     * normal output into stdout. Commands that still build their result as a
+     * String have it written to stdout here, so on return exec.output only
+     * carries diagnostics.
+     */
+    Execution run(String cmd, InputStream stdin, OutputStream stdout) {
+        Parser.Pipeline pipeline = parser.parse(cmd);
+        if (pipeline == null) {
+            Execution exec = new Execution();
             exec.exit_code = Execution.ExitCode.SYNTAX_ERROR;
             return exec;
         }
-        // Inside each case, validate arguments, if no match, return
-        // ExitCode.INVALID_ARGUMENTS and any extra errors in output else return
-        // execution
-        String[] args = parser.getArguments();
-        switch (parser.getCommand()) {
-        case EXIT:
-            exec = null; // Special case to end program
-            break;
-
-        case PRINT_WORKING_DIR:
-            exec = this.pwd();
-            break;
-
-        case CHANGE_DIR:
-            if (args.length == 0) {
-                exec = this.cd(_home);
-            } else if (args.length == 1) {
-                exec = this.cd(args[0]);
-            } else {
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            }
-            break;
+        if (pipeline.background)
+            return background(pipeline, cmd, stdout);
+        return run(pipeline, stdin, stdout);
+    }
 
-        case MORE:
-            if (stdin == null && args.length == 0) {
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            } else {
-                exec = this.more(args, stdin);
+    private Execution run(Parser.Pipeline pipeline, InputStream stdin, OutputStream stdout) {
+        if (pipeline.stages.length > 1)
+            return pipe(pipeline.stages, stdin, stdout);
+        return execute(pipeline.stages[0], stdin, stdout);
+    }
+
+    /*
+     * Starts pipeline as a job and returns at once. The job reads nothing, as
+     * the user's input belongs to the foreground, and writes to stdout alongside
+     * whatever runs next.
+     */
+    private Execution background(Parser.Pipeline pipeline, String cmd, OutputStream stdout) {
+        Execution exec = new Execution();
+        // Its own directory, starting where this one's is now
+        Terminal job = new Terminal(this, dir, jobs, input);
+        JobTable.Job started = jobs.start(cmd.trim(), () -> job.run(pipeline, InputStream.nullInputStream(), stdout));
+        exec.exit_code = Execution.ExitCode.SUCCESS;
+        if (interactive) {
+            try {
+                stdout.write(("[" + started.id + "]\n").getBytes());
+            } catch (IOException e) {
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
             }
-            break;
-        case LIST_DIR:
-            if (args.length == 0) {
-                exec = this.ls(getCurrentDir());
-            } else if (args.length == 1) {
-                exec = this.ls(args[0]);
-            } else {
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
+        }
+        return exec;
+    }
+
+    Execution execute(Parser.Stage stage, InputStream stdin, OutputStream stdout) {
+        if (stage.redirect != null)
+            return redirect(stage, stdin);
+        return command(stage, stdin, stdout);
+    }
+
+    private Execution command(Parser.Stage stage, InputStream stdin, OutputStream stdout) {
+        CommandMetrics.Meter meter = metrics.meter(stdin, stdout);
+        Execution exec = dispatch(stage, meter.in, meter.out);
+        if (exec != null && exec.exit_code == Execution.ExitCode.SUCCESS && exec.output != null) {
+            try {
+                meter.out.write(exec.output.getBytes());
+                exec.output = null;
+            } catch (IOException e) {
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
             }
-            break;
-        case COPY:
-            if (args.length == 2) {
-                exec = this.cp(args[0], args[1]);
-            } else {
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
+        }
+        meter.done(stage, exec);
+        return exec;
+    }
+
+    private Execution dispatch(Parser.Stage stage, InputStream stdin, OutputStream stdout) {
+        Execution exec = new Execution();
+        if (stage.name.isEmpty()) {
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+            return exec;
+        }
+        ShellCommand command = commands.lookup(stage.name);
+        String[] args = stage.args;
+        if (command != null && stage.globs != null) {
+            try {
+                args = expand(stage);
+            } catch (IOException e) {
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                exec.output = "Couldn't expand arguments: " + e.getMessage() + "\n";
+                return exec;
             }
-            break;
-        case MOVE:
-            if (args.length == 2) {
-                exec = this.mv(args[0], args[1]);
-            } else {
+            if (args == null) {
                 exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
+                exec.output = "Argument list too long, over " + ARG_MAX + " bytes\n";
+                return exec;
             }
-            break;
-        case CLEAR_SCREEN:
-            exec = this.clear();
-            break;
-        case DELETE_FILE:
-            if (args.length == 1)
-                exec = this.rm(args[0]);
-            else
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            break;
-        case PRINT_DATE:
-            if (args.length != 0)
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            else
-                exec = date();
-            break;
-        case DELETE_DIR:
-            if (args.length == 1)
-                exec = this.rmdir(args[0]);
-            else
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            break;
-        case CREATE_DIR:
-            if (args.length == 1)
-                exec = this.mkdir(args[0]);
-            else
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            break;
-        case PRINT_HELP:
-            if (args.length == 0)
-                exec = this.printHelp();
-            else if (args.length == 1)
-                exec = this.help(args[0]);
-            else
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            break;
-        case PRINT_ARGS:
-            if (args.length == 0)
-                exec = this.printArgs();
-            else if (args.length == 1)
-                exec = this.args(args[0]);
-            else
-                exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
-            break;
-
-        case CONCATENATE:
-            exec = cat(args, stdin);
-            break;
-
-        case PIPE:
-            exec = pipe(args[0], args[1], stdin);
-            break;
-        case OUTPUT_REDIRECT:
-            exec = overwrite(args[0], args[1], stdin);
-            break;
-        case OUTPUT_REDIRECT_APPEND:
-            exec = append(args[0], args[1], stdin);
-            break;
-        case NONE:
-            exec.exit_code = Execution.ExitCode.SUCCESS;
-            break;
-        default:
+        }
+        if (command == null) {
             exec.exit_code = Execution.ExitCode.COMMAND_NOT_FOUND;
-            break;
+        } else if (!command.accepts(args, stdin != null)) {
+            exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
+        } else {
+            exec = command.run(this, args, stdin, stdout);
         }
         return exec;
     }
 
+    /*
+     * stage's arguments with its globs replaced by the paths they match, or
+     * left as typed when they match nothing. Matches are added as the walk
+     * finds them and it stops once they pass ARG_MAX bytes, giving null.
+     */
+    private String[] expand(Parser.Stage stage) throws IOException {
+        final ArrayList<String> args = new ArrayList<String>();
+        final long[] size = { 0 };
+        Glob.Sink sink = path -> {
+            size[0] += path.length() + 1;
+            args.add(path);
+            return size[0] <= ARG_MAX;
+        };
+        for (int i = 0; i < stage.args.length; ++i) {
+            int before = args.size();
+            if (stage.globs[i] != null && !Glob.compile(stage.globs[i]).expand(dir, sink))
+                return null;
+            if (args.size() == before && !sink.accept(stage.args[i]))
+                return null;
+        }
+        return args.toArray(new String[0]);
+    }
+
     Execution pwd() {
         Execution exec = new Execution();
         exec.exit_code = Execution.ExitCode.SUCCESS;
@@ -179,9 +249,11 @@ public class Terminal {
 
     Execution cd(String path) {
         Execution exec = new Execution();
-        if (Paths.get(expandPath(path)).toFile().isDirectory()) {
+        Path target = Paths.get(expandPath(path));
+        if (cache.isDirectory(target)) {
             exec.exit_code = Execution.ExitCode.SUCCESS;
-            this.dir = Paths.get(expandPath(path));
+            this.dir = target;
+            completer.visit(target);
         } else {
             exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
             exec.output = "Path specified is not a valid directory\n";
@@ -189,122 +261,356 @@ public class Terminal {
         return exec;
     }
 
-    Execution more(String[] files, String stdin) {
-        final String bufferSeparator = "*********************EOF*********************";
+    Execution more(String[] files, InputStream stdin, OutputStream stdout) {
+        final String bufferSeparator = "*********************EOF*********************\n";
         Execution exec = new Execution();
         exec.exit_code = Execution.ExitCode.SUCCESS;
-        // Show stdin, then files one by one
-        String output = stdin == null ? "" : stdin + bufferSeparator;
-        for (int i = 0; i < files.length; ++i) {
-            Path f = Paths.get(expandPath(files[i]));
-            if (!f.toFile().exists() || !f.toFile().isFile()) {
-                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
-                exec.output = "Arguments specified are not readable files\n";
-                break;
+        // Show stdin as it arrives, then files one by one
+        try {
+            if (stdin != null) {
+                page(new BufferedReader(new InputStreamReader(stdin)), stdout);
+                stdout.write(bufferSeparator.getBytes());
             }
-            try {
-                output += new String(Files.readAllBytes(f));
-                output += bufferSeparator;
-            } catch (IOException e) {
-                exec.exit_code = Execution.ExitCode.ERROR;
-                break;
+            for (int i = 0; i < files.length; ++i) {
+                Path f = Paths.get(expandPath(files[i]));
+                if (!cache.isFile(f)) {
+                    exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                    exec.output = "Arguments specified are not readable files\n";
+                    break;
+                }
+                boolean quit = !page(f, stdout);
+                stdout.write(bufferSeparator.getBytes());
+                if (quit)
+                    break;
             }
+            stdout.flush();
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.ERROR;
         }
+        return exec;
+    }
+
+    // Numbers and prints lines from in, waiting for the user after every page
+    private void page(BufferedReader in, OutputStream stdout) throws IOException {
         final int page_size = 10;
-        int curr = 0;
-        String[] lines = output.split("\n");
-        Scanner sc = new Scanner(System.in);
-        while (curr< lines.length) {
-            for (int i = 0; i < page_size && curr < lines.length; ++i, ++curr) {
-                System.out.println(String.valueOf(curr+1) + '\t' + lines[curr]);
+        int line = 0;
+        String text;
+        while ((text = in.readLine()) != null) {
+            stdout.write((String.valueOf(++line) + '\t' + text + '\n').getBytes());
+            if (interactive && line % page_size == 0) {
+                stdout.flush();
+                input.readLine();
             }
-            System.out.flush();
-            sc.nextLine();
         }
-        return exec;
     }
 
-    Execution ls(String path) {
+    /*
+     * Pages through a file by its line index, so only the lines on screen are
+     * read. At the prompt Enter shows the next page, "b" the previous one, "N"
+     * or ":N" the page starting at line N, "N%" the page N percent into the
+     * file, and "q" stops. Returns false when the user quit.
+     */
+    private boolean page(Path f, OutputStream stdout) throws IOException {
+        final int page_size = 10;
+        try (FileChannel file = FileChannel.open(f, StandardOpenOption.READ)) {
+            LineIndex index = LineIndex.of(f);
+            int top = 0;
+            while (index.has(file, top)) {
+                int shown = 0;
+                for (int n = top; shown < page_size && index.has(file, n); ++n, ++shown)
+                    stdout.write((String.valueOf(n + 1) + '\t' + index.line(file, n) + '\n').getBytes());
+                if (!interactive) {
+                    top += shown;
+                    continue;
+                }
+                stdout.flush();
+                String answer = input.readLine();
+                if (answer == null || answer.trim().equals("q"))
+                    return false;
+                answer = answer.trim();
+                try {
+                    if (answer.equals("b")) {
+                        top = Math.max(0, top - page_size);
+                    } else if (answer.endsWith("%")) {
+                        double percent = Double.parseDouble(answer.substring(0, answer.length() - 1));
+                        top = index.lineAt(file, (long) (index.size() * Math.min(100, Math.max(0, percent)) / 100));
+                    } else if (!answer.isEmpty()) {
+                        top = Math.max(0, Integer.parseInt(answer.startsWith(":") ? answer.substring(1) : answer) - 1);
+                        if (!index.has(file, top))
+                            top = Math.max(0, index.count(file) - page_size);
+                    } else {
+                        top += shown;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a command, stay on this page
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Writes entries out as the directory stream yields them, unless sorting
+     * was asked for, in which case names have to be collected first.
+     */
+    Execution ls(String path, boolean longFormat, boolean sorted, OutputStream stdout) {
         Execution exec = new Execution();
-        if (Paths.get(expandPath(path)).toFile().isDirectory()) {
+        Path folder = Paths.get(expandPath(path));
+        if (!cache.isDirectory(folder)) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Path specified is not a valid directory\n";
+            return exec;
+        }
+        List<String> names = longFormat ? null : cache.listing(folder);
+        if (names != null) {
+            if (sorted) {
+                names = new ArrayList<String>(names);
+                Collections.sort(names);
+            }
+            StringBuilder listing = new StringBuilder();
+            for (String name : names)
+                listing.append(name).append('\n');
             exec.exit_code = Execution.ExitCode.SUCCESS;
-            final File folder = new File(expandPath(path));
-            File[] listOfFiles = folder.listFiles();
-            exec.output = "";
-            for (int i = 0; i < listOfFiles.length; ++i) {
-                exec.output += listOfFiles[i].getName() + '\n';
+            exec.output = listing.append('\n').toString();
+            return exec;
+        }
+        exec.exit_code = Execution.ExitCode.SUCCESS;
+        BufferedOutputStream out = new BufferedOutputStream(stdout, 64 * 1024);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            ArrayList<String> lines = sorted ? new ArrayList<String>() : null;
+            // Small plain listings are kept for the next ls of this directory
+            ArrayList<String> seen = longFormat ? null : new ArrayList<String>();
+            for (Path entry : entries) {
+                String line = longFormat ? describe(entry) : entry.getFileName().toString();
+                if (seen != null && seen.size() <= PathCache.LISTING_LIMIT)
+                    seen.add(line);
+                if (sorted)
+                    lines.add(line);
+                else
+                    out.write((line + '\n').getBytes());
             }
-            exec.output += '\n';
-        } else {
+            if (seen != null)
+                cache.remember(folder, Collections.unmodifiableList(seen));
+            if (sorted) {
+                // Long lines end with the name, so sort on that
+                lines.sort(longFormat ? Comparator.comparing((String l) -> l.substring(l.indexOf('\t') + 1))
+                        : Comparator.<String>naturalOrder());
+                for (String line : lines)
+                    out.write((line + '\n').getBytes());
+            }
+            out.write('\n');
+            out.flush();
+        } catch (IOException | DirectoryIteratorException e) {
             exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
-            exec.output = "Path specified is not a valid directory\n";
+            exec.output = "Couldn't list " + folder + "\n";
         }
         return exec;
     }
 
-    Execution cp(String oldPath, String newPath) {
-        Execution exec = new Execution();
-        exec.exit_code = Execution.ExitCode.SUCCESS;
-        exec.output = "File Copied successfully\n";
-        File src = Paths.get(expandPath(oldPath)).toFile();
-        File dst = Paths.get(expandPath(newPath)).toFile();
+    // Type, permissions, size and modification time from a single stat
+    private static String describe(Path entry) throws IOException {
+        final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
+        BasicFileAttributes attrs;
+        String permissions;
         try {
-           if (src.isFile() && dst.isDirectory()) {
-                dst = new File(expandPath(newPath + File.separatorChar + src.getName()));
-                copy(oldPath, dst);
+            PosixFileAttributes posix = Files.readAttributes(entry, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            permissions = PosixFilePermissions.toString(posix.permissions());
+            attrs = posix;
+        } catch (UnsupportedOperationException e) {
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            permissions = "---------";
+        }
+        char type = attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : attrs.isRegularFile() ? '-' : '?';
+        LocalDateTime modified = LocalDateTime.ofInstant(attrs.lastModifiedTime().toInstant(), ZoneId.systemDefault());
+        return String.format("%c%s %12d %s\t%s", type, permissions, attrs.size(), dtf.format(modified),
+                entry.getFileName());
+    }
+
+    /*
+     * Copies sources into target, which must be a directory when there is more
+     * than one, on jobs threads at once. Directories are only copied when
+     * recursive. With sync, files whose copy is already up to date are
+     * skipped, and with blocks large ones are updated block by block, keeping
+     * hashes in a manifest beside the copies. Copying a single file just says
+     * so; otherwise every file copied is listed, and every one that failed is
+     * reported.
+     */
+    Execution cp(String[] sources, String target, boolean recursive, int jobs, boolean sync, boolean blocks,
+            OutputStream stdout) {
+        Execution exec = new Execution();
+        Path dst = Paths.get(expandPath(target));
+        boolean into = cache.isDirectory(dst);
+        if (sources.length > 1 && !into) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = target + " is not a directory\n";
+            return exec;
+        }
+        SyncManifest manifest = null;
+        if (blocks) {
+            try {
+                manifest = SyncManifest.load(into ? dst : dst.getParent());
+            } catch (IOException e) {
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                exec.output = "Can't read " + SyncManifest.NAME + ": " + e.getMessage() + "\n";
+                return exec;
+            }
+        }
+        CopyScheduler scheduler = new CopyScheduler(jobs, sync, manifest);
+        ArrayList<String> skipped = new ArrayList<String>();
+        boolean single = sources.length == 1;
+        for (String source : sources) {
+            Path src = Paths.get(expandPath(source));
+            Path to = into ? dst.resolve(src.getFileName().toString()) : dst;
+            if (!cache.exists(src)) {
+                skipped.add(source + ": no such file or directory");
+            } else if (cache.isDirectory(src)) {
+                single = false;
+                if (!recursive)
+                    skipped.add(source + ": is a directory, use -r");
+                else if (into(src, to))
+                    skipped.add(source + ": cannot copy a directory into itself");
+                else
+                    scheduler.copyTree(src, to);
             } else {
-                copy(oldPath, dst);
-                exec.exit_code = Execution.ExitCode.SUCCESS;
+                scheduler.copy(src, to);
             }
-        } catch (Exception e) {
-            exec.output = "Please Provide a Valid File name/Directory \n";
+        }
+        scheduler.await();
+        cache.invalidate(dst);
+        List<String> failed = scheduler.failed();
+        failed.addAll(skipped);
+        exec.exit_code = failed.isEmpty() ? Execution.ExitCode.SUCCESS : Execution.ExitCode.READ_WRITE_ERROR;
+        try {
+            if (single && failed.isEmpty()) {
+                String done = scheduler.unchanged() > 0 ? "File is up to date\n" : "File Copied successfully\n";
+                stdout.write(done.getBytes());
+            } else if (!single) {
+                Writer out = new BufferedWriter(new OutputStreamWriter(stdout), 64 * 1024);
+                List<String> copied = scheduler.copied();
+                for (String line : copied)
+                    out.write(line + '\n');
+                out.write(copied.size() + " files copied");
+                out.write(sync || blocks ? ", " + scheduler.unchanged() + " unchanged\n" : "\n");
+                out.flush();
+            }
+        } catch (IOException e) {
             exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
         }
+        if (!failed.isEmpty()) {
+            StringBuilder output = new StringBuilder(failed.size() + " failed:\n");
+            for (String line : failed)
+                output.append('\t').append(line).append('\n');
+            exec.output = output.toString();
+        }
         return exec;
     }
 
-    void copy(String oldPath, File dist) throws IOException {
-        FileInputStream copyFile = new FileInputStream(expandPath(oldPath));
-        FileOutputStream pasteFile = new FileOutputStream(dist.getAbsolutePath());
-
-        byte[] buffer = new byte[1024];
-        int length;
-
-        while ((length = copyFile.read(buffer)) > 0) {
-            pasteFile.write(buffer, 0, length);
+    private static boolean into(Path src, Path dst) {
+        try {
+            return CopyScheduler.within(src, dst);
+        } catch (IOException e) {
+            // Then the copy itself will fail and say why
+            return false;
         }
-        copyFile.close();
-        pasteFile.close();
+    }
 
+    // Copies the file at oldPath to dist atomically, see CopyScheduler.copyFile()
+    void copy(String oldPath, File dist) throws IOException {
+        Path dst = dist.toPath().toAbsolutePath();
+        try {
+            CopyScheduler.copyFile(Paths.get(expandPath(oldPath)), dst);
+        } finally {
+            cache.invalidate(dst);
+        }
     }
 
+    /*
+     * Moves with a single rename whenever source and destination share a file
+     * system. Only a cross device move falls back to copying.
+     */
     Execution mv(String oldPath, String newPath) {
         Execution exec = new Execution();
-        File src = new File(expandPath(oldPath)); 
-        File dst = new File(expandPath(newPath)); 
+        Path src = Paths.get(expandPath(oldPath));
+        Path dst = Paths.get(expandPath(newPath));
+        if (!Files.exists(src, LinkOption.NOFOLLOW_LINKS)) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Please Provide a Valid File name/Directory \n";
+            return exec;
+        }
+        if (cache.isDirectory(dst))
+            dst = dst.resolve(src.getFileName());
         exec.exit_code = Execution.ExitCode.SUCCESS;
-        if (src.isDirectory()){
-            File[] listOfFiles = src.listFiles();
-            if(dst.exists()){
-                dst = new File(expandPath(dst.getAbsolutePath() + File.separatorChar + src.getName()));
-            }
-            dst.mkdirs();
-            for (File f : listOfFiles){
-                exec = mv(f.getAbsolutePath(), dst.getAbsolutePath());
-                if(exec.exit_code != Execution.ExitCode.SUCCESS){
-                    return exec;
-                }
+        try {
+            try {
+                Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                moveAcross(src, dst);
             }
-        }else{
-            // Source is a file
-            exec = this.cp(src.getAbsolutePath(), dst.getAbsolutePath());
-            if (exec.exit_code.equals(Execution.ExitCode.READ_WRITE_ERROR))
-                return exec;
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't move " + src.getFileName() + ": " + e.getMessage() + "\n";
         }
-        src.delete();
+        cache.invalidate(src);
+        cache.invalidate(dst);
         return exec;
     }
 
+    /*
+     * Copies src into a fresh staging directory next to dst, renames the copy
+     * into place and only then deletes src. Every file is fsynced and compared
+     * byte for byte with its source first. If anything fails the staging
+     * directory is deleted again, so an interruption leaves the source intact
+     * and at worst, if the shell itself dies, a ".name.mv*" directory behind
+     * that no later move will pick up.
+     */
+    void moveAcross(Path src, Path dst) throws IOException {
+        if (Files.exists(dst, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(src, LinkOption.NOFOLLOW_LINKS))
+            throw new FileAlreadyExistsException(dst.toString());
+        final Path dir = Files.createTempDirectory(dst.toAbsolutePath().getParent(), "." + dst.getFileName() + ".mv");
+        final Path staging = dir.resolve(dst.getFileName().toString());
+        try {
+            Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(staging.resolve(src.relativize(d).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                    Path target = f.equals(src) ? staging : staging.resolve(src.relativize(f).toString());
+                    if (attrs.isRegularFile()) {
+                        copy(f.toString(), target.toFile());
+                        if (Files.mismatch(f, target) != -1)
+                            throw new IOException("verification failed for " + f);
+                    } else {
+                        Files.copy(f, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Files.move(staging, dst, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            new TreeDeleter().delete(dir);
+        }
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (e != null)
+                    throw e;
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     Execution clear() {
         Execution exec = new Execution();
         exec.exit_code = Execution.ExitCode.SUCCESS;
@@ -312,13 +618,44 @@ public class Terminal {
         return exec;
     }
 
-    Execution rm(String path) {
+    // Removes every one of paths, going on past those that fail
+    Execution rm(String[] paths, boolean recursive) {
+        if (paths.length == 1)
+            return rm(paths[0], recursive);
+        Execution exec = new Execution();
+        StringBuilder failed = new StringBuilder();
+        int removed = 0, failures = 0;
+        for (String path : paths) {
+            Execution one = rm(path, recursive);
+            if (one.exit_code == Execution.ExitCode.SUCCESS) {
+                ++removed;
+            } else {
+                ++failures;
+                failed.append('\t').append(path).append(": ").append(one.output.trim().replace("\n", "\n\t"))
+                        .append('\n');
+            }
+        }
+        if (failures == 0) {
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+            exec.output = removed + " removed successfully.\n";
+        } else {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = removed + " removed, " + failures + " failed:\n" + failed;
+        }
+        return exec;
+    }
+
+    Execution rm(String path, boolean recursive) {
         Execution exec = new Execution();
-        if (Paths.get(expandPath(path)).toFile().isFile()) {
-            final File file = new File(expandPath(path));
+        Path target = Paths.get(expandPath(path));
+        if (recursive && Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            return removeTree(path, target, target.getFileName() + " was removed successfully.\n");
+        if (cache.isFile(target)) {
+            final File file = target.toFile();
             exec.exit_code = Execution.ExitCode.SUCCESS;
             exec.output = file.getName() + " was removed successfully.\n";
             file.delete();
+            cache.invalidate(target);
         } else {
             exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
             exec.output = "Path specified is not a valid file.\n";
@@ -326,6 +663,36 @@ public class Terminal {
         return exec;
     }
 
+    /*
+     * Deletes target, path as expanded, and everything under it in parallel,
+     * without following links. On failure lists each entry that is left and
+     * why. Like GNU rm, refuses / and a path ending in . or .. outright.
+     */
+    private Execution removeTree(String path, Path target, String success) {
+        Execution exec = new Execution();
+        Path last = Paths.get(path).getFileName();
+        if (target.getParent() == null || last != null && (last.toString().equals(".") || last.toString().equals(".."))) {
+            exec.exit_code = Execution.ExitCode.ERROR;
+            exec.output = "Refusing to remove " + path + " recursively.\n";
+            return exec;
+        }
+        TreeDeleter deleter = new TreeDeleter();
+        boolean gone = deleter.delete(target);
+        cache.invalidate(target);
+        if (gone) {
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+            exec.output = success;
+            return exec;
+        }
+        StringBuilder output = new StringBuilder("Removed " + deleter.files() + " files and " + deleter.directories()
+                + " directories, couldn't remove:\n");
+        for (String error : deleter.errors())
+            output.append('\t').append(error).append('\n');
+        exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+        exec.output = output.toString();
+        return exec;
+    }
+
     Execution date() {
         Execution exec = new Execution();
         DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
@@ -335,44 +702,53 @@ public class Terminal {
         return exec;
     }
 
-    Execution rmdir(String path) {
+    /*
+     * Removes an empty directory. With recursive it needn't be empty, and with
+     * parents each directory above it in path is removed afterwards too, as
+     * long as that leaves it empty.
+     */
+    Execution rmdir(String path, boolean parents, boolean recursive) {
         Execution exec = new Execution();
-        if (Paths.get(expandPath(path)).toFile().isDirectory()) {
-            final File directory = new File(expandPath(path));
-            if (directory.list().length > 0)
-                exec.output = "Directory can't be removed.\n";
-            else {
-                directory.delete();
-                exec.output = "Directory was deleted successfully.\n";
-            }
-        } else {
+        Path target = Paths.get(expandPath(path));
+        if (!cache.isDirectory(target) || Files.isSymbolicLink(target)) {
             exec.output = "The specified path is not a valid directory.\n";
             exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
             return exec;
         }
+        final File directory = target.toFile();
+        if (recursive) {
+            exec = removeTree(path, target, "Directory was deleted successfully.\n");
+            if (exec.exit_code != Execution.ExitCode.SUCCESS)
+                return exec;
+        } else if (directory.list().length > 0) {
+            exec.output = "Directory can't be removed.\n";
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+            return exec;
+        } else {
+            directory.delete();
+            cache.invalidate(target);
+            exec.output = "Directory was deleted successfully.\n";
+        }
+        for (Path above = Paths.get(path).getParent(); parents && above != null; above = above.getParent()) {
+            Path dir = Paths.get(expandPath(above.toString()));
+            try {
+                Files.delete(dir);
+            } catch (IOException e) {
+                exec.output += above + " can't be removed.\n";
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                return exec;
+            } finally {
+                cache.invalidate(dir);
+            }
+        }
         exec.exit_code = Execution.ExitCode.SUCCESS;
         return exec;
     }
 
-    /*
-     * Execution rmdir(String path) { Execution exec = new Execution();
-     * if(Paths.get(expandPath(path)).toFile().isDirectory()) { final File directory
-     * = new File(expandPath(path)); try{ delete(directory); exec.exit_code =
-     * Execution.ExitCode.SUCCESS; exec.output = ""; //exec.output +=
-     * "Done Successfully.\n"; } catch(IOException e){ exec.exit_code =
-     * Execution.ExitCode.ERROR; exec.output = "Directory can't be removed.\n"; } }
-     * else { exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR; exec.output =
-     * "Path specified is not a valid directory.\n"; } return exec; } public static
-     * void delete(File directory) throws IOException{ if(directory.isDirectory()) {
-     * File[] folders = directory.listFiles(); for(File folder : folders) {
-     * if(folder.list().length == 0) delete(folder); } directory.delete(); } else
-     * if(directory.isFile()) { if(directory.list().length == 0) directory.delete();
-     * } else throw new IOException("error"); }
-     */
     Execution mkdir(String path) {
         Execution exec = new Execution();
         final File directory = new File(expandPath(path));
-        if (directory.isDirectory()) {
+        if (cache.isDirectory(directory.toPath())) {
             exec.exit_code = Execution.ExitCode.ERROR;
             exec.output = "Directory already exits\n";
         } else {
@@ -396,6 +772,7 @@ public class Terminal {
              *}
              */
             directory.mkdirs();
+            cache.invalidate(directory.toPath());
             exec.exit_code = Execution.ExitCode.SUCCESS;
         }
         return exec;
@@ -403,233 +780,525 @@ public class Terminal {
 
     Execution help(String command) {
         Execution exec = new Execution();
-        switch (command) {
-        case "cd":
-            exec.output = command + " : is used to change the current directory.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "ls":
-            exec.output = command + " : is used to list information about the files in the current directory.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "cp":
-            exec.output = command + " : is used to copy source to destination, or multiple sources to directory.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "cat":
-            exec.output = command + " : is used to concatenate files and print on the standard output.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "more":
-            exec.output = command + " : is used to view file or standard input one screenful at a time.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "mkdir":
-            exec.output = command + " : allows the user to create directories.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "rmdir":
-            exec.output = command + " : removes the directory if it is empty.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "mv":
-            exec.output = command + " : used to move or rename files.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "rm":
-            exec.output = command + " : removes files or directories.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "args":
-            exec.output = command
-                    + " : lists all parameters on the command line, number of strings for specific command.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "date":
-            exec.output = command + " : displays or sets time.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "help":
-            exec.output = command + " : displays what a command does.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "pwd":
-            exec.output = command + " : prints name of current directory.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "clear":
-            exec.output = command + " : clears the terminal screen.\n";
-            exec.output += "	Its arguments = " + args(command).output;
-            break;
-        case "":
-            printHelp();
-            break;
-        default:
+        if (command.isEmpty())
+            return printHelp();
+        ShellCommand c = commands.lookup(command);
+        if (c == null) {
             exec.exit_code = Execution.ExitCode.ERROR;
             exec.output = command + " command doesn't exist.\n";
             return exec;
         }
+        exec.output = command + " : " + c.description() + "\n";
+        exec.output += "	Its arguments = " + c.usage() + "\n";
         exec.exit_code = Execution.ExitCode.SUCCESS;
         return exec;
     }
 
     Execution printHelp() {
         Execution exec = new Execution();
-        String[] commands = { "cd", "ls", "cp", "cat", "more", "mkdir", "rmdir", "mv", "rm", "args", "date", "help",
-                "pwd", "clear" };
-        exec.output = "";
-        for (int i = 0; i < commands.length; i++)
-            exec.output += this.help(commands[i]).output;
+        StringBuilder output = new StringBuilder();
+        for (String command : commands.names())
+            output.append(this.help(command).output);
+        exec.output = output.toString();
         exec.exit_code = Execution.ExitCode.SUCCESS;
         return exec;
     }
 
     Execution args(String command) {
         Execution exec = new Execution();
-        switch (command) {
-        case "cd":
-            exec.output = "arg1 : SourcePath.\n";
-            break;
-        case "ls":
-            exec.output = "arg1 : SourcePath.\n";
-            break;
-        case "more":
-            exec.output = "arg1 : files, arg2 : stdin.\n";
-            break;
-        case "mv":
-            exec.output = "arg1 : SourcePath, arg2 : DestinationPath.\n";
-            break;
-        case "clear":
-            exec.output = "has no arguments.\n";
-            break;
-        case "rm":
-            exec.output = "arg1 : SourcePath.\n";
-            break;
-        case "date":
-            exec.output = "has no arguments.\n";
-            break;
-        case "pwd":
-            exec.output = "has no arguments.\n";
-            break;
-        case "cp":
-            exec.output = "arg1 : SourcePath, arg2 : DestinationPath.\n";
-            break;
-        case "cat":
-            exec.output = "can have 0 or n arguments.\n";
-            break;
-        case "rmdir":
-            exec.output = "arg1 : SourcePath.\n";
-            break;
-        case "mkdir":
-            exec.output = "arg1 : DestinationPath.\n";
-            break;
-        case "help":
-            exec.output = "arg1 : CommandName.\n";
-            break;
-        case "args":
-            exec.output = "arg1 : CommandName.\n";
-            break;
-        case "":
-            printArgs();
-            break;
-        default:
+        if (command.isEmpty())
+            return printArgs();
+        ShellCommand c = commands.lookup(command);
+        if (c == null) {
             exec.exit_code = Execution.ExitCode.ERROR;
             exec.output = command + " command doesn't exist.\n";
             return exec;
         }
+        exec.output = c.usage() + "\n";
         exec.exit_code = Execution.ExitCode.SUCCESS;
         return exec;
     }
 
     Execution printArgs() {
         Execution exec = new Execution();
-        String[] commands = { "cd", "ls", "cp", "cat", "more", "mkdir", "rmdir", "mv", "rm", "args", "date", "help",
-                "pwd", "clear" };
-        exec.output = "";
-        for (int i = 0; i < commands.length; i++)
-            exec.output += commands[i] + " : " + this.args(commands[i]).output;
+        StringBuilder output = new StringBuilder();
+        for (String command : commands.names())
+            output.append(command + " : " + this.args(command).output);
+        exec.output = output.toString();
         exec.exit_code = Execution.ExitCode.SUCCESS;
         return exec;
     }
 
-    Execution cat(String[] listOfFiles, String userInput) {
+    Execution cat(String[] listOfFiles, InputStream stdin, OutputStream stdout) {
         Execution exec = new Execution();
         exec.exit_code = Execution.ExitCode.SUCCESS;
-        exec.output = userInput == null ? "" : userInput;
-        if (listOfFiles.length == 0 && userInput == null) {
-            // Take input
-            Scanner sc = new Scanner(System.in);
-            String line;
-            exec.output = "";
-            exec.exit_code = Execution.ExitCode.SUCCESS;
-            while (sc.hasNextLine()) {
-                line = sc.nextLine();
-                if (line.equals("fml"))
-                    break; // down mentally
-                exec.output += line + '\n';
+        try {
+            if (stdin != null) {
+                stdin.transferTo(stdout);
+            } else if (listOfFiles.length == 0) {
+                // Take input
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (line.equals("fml"))
+                        break; // down mentally
+                    stdout.write((line + '\n').getBytes());
+                }
             }
-        }
-        if (listOfFiles.length > 0) {
-            exec.exit_code = Execution.ExitCode.SUCCESS;
-            File tempFile;
-            String line;
-            BufferedReader in;
+            Path tempFile;
             for (int i = 0; i < listOfFiles.length; ++i) {
-                tempFile = Paths.get(expandPath(listOfFiles[i])).toFile();
-                if (!tempFile.isFile()) {
+                tempFile = Paths.get(expandPath(listOfFiles[i]));
+                if (!cache.isFile(tempFile)) {
                     exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
                     exec.output = "Please Provide a Valid File name/Directory \n";
                     break;
                 }
-                try {
-                    in = new BufferedReader(new FileReader(tempFile.getAbsolutePath()));
-                    while ((line = in.readLine()) != null)
-                        exec.output += line + '\n';
-                    in.close();
-                } catch (IOException e) {
+                transfer(tempFile, stdout);
+            }
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+        }
+        return exec;
+    }
+
+    // Searches files in parallel, or stdin as it streams in when there are none
+    Execution grep(TextSearch search, String[] files, InputStream stdin, OutputStream stdout) {
+        Execution exec = new Execution();
+        exec.exit_code = Execution.ExitCode.SUCCESS;
+        Path[] paths = new Path[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            paths[i] = Paths.get(expandPath(files[i]));
+            if (!cache.isFile(paths[i])) {
+                exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                exec.output = files[i] + " is not a readable file\n";
+                return exec;
+            }
+        }
+        try {
+            if (files.length == 0)
+                search.search(stdin, stdout);
+            else
+                search.search(paths, files, stdout);
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't search: " + e.getMessage() + "\n";
+        }
+        return exec;
+    }
+
+    /*
+     * Prints root, then every path under it, that passes filter, walking
+     * directories in parallel; the order below root is therefore not fixed.
+     * Paths start with root as the user wrote it.
+     */
+    Execution find(String root, BiPredicate<Path, BasicFileAttributes> filter, int maxDepth, boolean followLinks,
+            OutputStream stdout) {
+        Execution exec = new Execution();
+        final Path start = Paths.get(expandPath(root));
+        final Path label = Paths.get(root);
+        if (!cache.isDirectory(start)) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Path specified is not a valid directory\n";
+            return exec;
+        }
+        final TreeWalker walker = new TreeWalker(followLinks, 64);
+        try {
+            if (filter.test(start, Files.readAttributes(start, BasicFileAttributes.class)))
+                walker.emit(root);
+            walker.walk(start, (path, attrs, depth) -> {
+                if (depth <= maxDepth && filter.test(path, attrs))
+                    walker.emit(label.resolve(start.relativize(path)).toString());
+                return depth < maxDepth;
+            }, stdout);
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            return exec;
+        }
+        return walked(walker, exec);
+    }
+
+    // Prints the bytes of regular files under each directory of root, or only root's total
+    Execution du(String root, boolean summary, boolean followLinks, OutputStream stdout) {
+        Execution exec = new Execution();
+        final Path start = Paths.get(expandPath(root));
+        final Path label = Paths.get(root);
+        if (!cache.isDirectory(start)) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Path specified is not a valid directory\n";
+            return exec;
+        }
+        final TreeWalker walker = new TreeWalker(followLinks, 64);
+        try {
+            walker.walk(start, new TreeWalker.Visitor() {
+                public boolean visit(Path path, BasicFileAttributes attrs, int depth) {
+                    return true;
+                }
+
+                @Override
+                public void leave(Path dir, long bytes, int depth) {
+                    if (!summary || depth == 0)
+                        walker.emit(bytes + "\t" + label.resolve(start.relativize(dir)));
+                }
+            }, stdout);
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            return exec;
+        }
+        return walked(walker, exec);
+    }
+
+    // Succeeds unless parts of the tree couldn't be read, which are then listed
+    private static Execution walked(TreeWalker walker, Execution exec) {
+        List<String> errors = walker.errors();
+        if (errors.isEmpty()) {
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+        } else {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            StringBuilder output = new StringBuilder();
+            for (String error : errors)
+                output.append("Couldn't read ").append(error).append('\n');
+            exec.output = output.toString();
+        }
+        return exec;
+    }
+
+    // Sorts the lines of files, or of stdin when there are none
+    Execution sort(ExternalSort sorter, String[] files, InputStream stdin, OutputStream stdout) {
+        Execution exec = new Execution();
+        ArrayList<BufferedReader> inputs = new ArrayList<BufferedReader>();
+        try {
+            if (files.length == 0)
+                inputs.add(new BufferedReader(new InputStreamReader(stdin, ExternalSort.CHARSET)));
+            for (String file : files) {
+                Path f = Paths.get(expandPath(file));
+                if (!cache.isFile(f)) {
                     exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+                    exec.output = file + " is not a readable file\n";
+                    return exec;
                 }
+                inputs.add(Files.newBufferedReader(f, ExternalSort.CHARSET));
             }
+            Writer out = new BufferedWriter(new OutputStreamWriter(stdout, ExternalSort.CHARSET), 64 * 1024);
+            sorter.sort(inputs, out);
+            out.flush();
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+        } catch (IOException | UncheckedIOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't sort: " + e.getMessage() + "\n";
+        } finally {
+            for (int i = files.length == 0 ? 1 : 0; i < inputs.size(); ++i)
+                closeQuietly(inputs.get(i));
         }
         return exec;
     }
 
-    Execution pipe(String leftCommand, String rightCommand, String stdin) {
+    // Prints the metrics of every command run so far, or writes them to file as CSV
+    Execution stats(String file, OutputStream stdout) {
         Execution exec = new Execution();
-        exec = run(leftCommand, stdin);
-        exec = run(rightCommand, exec.output);
+        try {
+            if (file == null) {
+                Writer out = new OutputStreamWriter(stdout);
+                metrics.print(out);
+                out.flush();
+            } else {
+                Path f = Paths.get(expandPath(file));
+                try (Writer out = Files.newBufferedWriter(f)) {
+                    metrics.export(out);
+                } finally {
+                    cache.invalidate(f);
+                }
+            }
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't write stats: " + e.getMessage() + "\n";
+        }
         return exec;
     }
 
-    Execution overwrite(String cmd, String file, String stdin) {
-        Execution e = new Execution();
-        e = this.run(cmd, stdin);
-        FileOutputStream fos;
+    /*
+     * Completions of word as a path, whole words as they would be typed, so
+     * "src/Ma" may give "src/Main.java". A lone match that is a directory ends
+     * with a separator.
+     */
+    PathCompleter.Completion complete(String word, int limit) throws IOException {
+        int slash = word.lastIndexOf(File.separatorChar);
+        String typed = word.substring(0, slash + 1);
+        Path folder = typed.isEmpty() ? dir : Paths.get(expandPath(typed));
+        if (!cache.isDirectory(folder))
+            return new PathCompleter.Completion(0, word, Collections.<String>emptyList());
+        PathCompleter.Completion found = completer.complete(folder, word.substring(slash + 1), limit);
+        ArrayList<String> words = new ArrayList<String>(found.names.size());
+        for (String name : found.names)
+            words.add(typed + name);
+        String common = typed + found.common;
+        if (found.count == 1 && cache.isDirectory(folder.resolve(found.common))) {
+            common += File.separatorChar;
+            words.set(0, common);
+        }
+        return new PathCompleter.Completion(found.count, common, words);
+    }
+
+    // Prints every completion of prefix, one per line
+    Execution complete(String prefix, OutputStream stdout) {
+        Execution exec = new Execution();
         try {
-            fos = new FileOutputStream(expandPath(file));
-            fos.write(e.output.getBytes());
-            e.exit_code = Execution.ExitCode.SUCCESS;
-            e.output = null;
-        } catch (FileNotFoundException e1) {
-            e.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
-        } catch (IOException e1) {
-            e.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            PathCompleter.Completion found = complete(prefix, Integer.MAX_VALUE);
+            BufferedOutputStream out = new BufferedOutputStream(stdout, 64 * 1024);
+            for (String word : found.names)
+                out.write((word + '\n').getBytes());
+            out.flush();
+            exec.exit_code = found.count == 0 ? Execution.ExitCode.ERROR : Execution.ExitCode.SUCCESS;
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't list " + prefix + ": " + e.getMessage() + "\n";
         }
-        return e;
+        return exec;
     }
-    Execution append(String cmd, String file, String stdin) {
-        Execution e = new Execution();
-        e = this.run(cmd, stdin);
-        FileOutputStream fos;
+
+    // Adds a command typed by the user to the history file
+    void record(String cmd) {
         try {
-            fos = new FileOutputStream(expandPath(file), true);
-            fos.write(e.output.getBytes());
-            e.exit_code = Execution.ExitCode.SUCCESS;
-            e.output = null;
-        } catch (FileNotFoundException e1) {
-            e.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            history.add(cmd);
+        } catch (IOException e) {
+            // The command still runs; only remembering it failed
+        }
+    }
+
+    /*
+     * Prints the latest count commands from history, or with text the latest
+     * count containing it, oldest first and numbered from the first ever typed.
+     */
+    Execution history(String text, int count, OutputStream stdout) {
+        Execution exec = new Execution();
+        try {
+            List<Integer> ids = new ArrayList<Integer>();
+            if (text == null) {
+                for (int id = history.size() - 1; id >= 0 && ids.size() < count; --id)
+                    ids.add(id);
+            } else {
+                ids = history.search(text, count);
+            }
+            if (text != null && ids.isEmpty()) {
+                exec.exit_code = Execution.ExitCode.ERROR;
+                exec.output = "No command typed contains " + text + "\n";
+                return exec;
+            }
+            StringBuilder output = new StringBuilder();
+            for (int i = ids.size() - 1; i >= 0; --i)
+                output.append(String.format("%5d  %s%n", ids.get(i) + 1, history.get(ids.get(i))));
+            stdout.write(output.toString().getBytes());
+            exec.exit_code = Execution.ExitCode.SUCCESS;
+        } catch (IOException e) {
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            exec.output = "Couldn't read history: " + e.getMessage() + "\n";
+        }
+        return exec;
+    }
+
+    // Lists jobs with their state; finished ones are reported once and dropped
+    Execution jobs() {
+        Execution exec = new Execution();
+        StringBuilder output = new StringBuilder();
+        for (JobTable.Job job : jobs.all()) {
+            String state = "Running";
+            if (job.done()) {
+                Execution result = job.result();
+                state = result.exit_code == Execution.ExitCode.SUCCESS ? "Done" : "Exit " + result.exit_code;
+                jobs.remove(job);
+            }
+            output.append("[" + job.id + "] " + state + "\t" + job.command + '\n');
+        }
+        exec.output = output.toString();
+        exec.exit_code = Execution.ExitCode.SUCCESS;
+        return exec;
+    }
+
+    // How many jobs are still running
+    int running() {
+        int n = 0;
+        for (JobTable.Job job : jobs.all()) {
+            if (!job.done())
+                ++n;
+        }
+        return n;
+    }
+
+    /*
+     * Blocks until job id has finished and returns its result, or with no id
+     * until every job has, returning the last one that failed.
+     */
+    Execution await(String id) {
+        Execution exec = new Execution();
+        exec.exit_code = Execution.ExitCode.SUCCESS;
+        if (id != null) {
+            JobTable.Job job = job(id);
+            return job == null ? noSuchJob(id) : await(job);
+        }
+        for (JobTable.Job job : jobs.all()) {
+            Execution result = await(job);
+            if (result.exit_code != Execution.ExitCode.SUCCESS)
+                exec = result;
+        }
+        return exec;
+    }
+
+    // Brings job id, or the latest one, to the foreground by waiting for it
+    Execution fg(String id, OutputStream stdout) {
+        JobTable.Job job = id == null ? jobs.last() : job(id);
+        if (job == null)
+            return noSuchJob(id == null ? "current" : id);
+        try {
+            stdout.write((job.command + '\n').getBytes());
+        } catch (IOException e) {
+            Execution exec = new Execution();
+            exec.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            return exec;
+        }
+        return await(job);
+    }
+
+    private JobTable.Job job(String id) {
+        try {
+            return jobs.get(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Execution await(JobTable.Job job) {
+        try {
+            Execution result = job.await();
+            jobs.remove(job);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Execution exec = new Execution();
+            exec.exit_code = Execution.ExitCode.ERROR;
+            return exec;
+        }
+    }
+
+    private static Execution noSuchJob(String id) {
+        Execution exec = new Execution();
+        exec.exit_code = Execution.ExitCode.INVALID_ARGUMENTS;
+        exec.output = "No such job: " + id + "\n";
+        return exec;
+    }
+
+    /*
+     * Copies the bytes of src into stdout untouched. When stdout is backed by a
+     * file descriptor, an OutputSink or FileSink included, the kernel moves the
+     * data without it entering the heap.
+     */
+    static long transfer(Path src, OutputStream stdout) throws IOException {
+        if (stdout instanceof CommandMetrics.CountingOutput) {
+            CommandMetrics.CountingOutput counted = (CommandMetrics.CountingOutput) stdout;
+            long n = transfer(src, counted.target);
+            counted.add(n);
+            return n;
+        }
+        stdout.flush();
+        WritableByteChannel out;
+        if (stdout instanceof FileOutputStream)
+            out = ((FileOutputStream) stdout).getChannel();
+        else if (stdout instanceof OutputSink)
+            out = ((OutputSink) stdout).getChannel();
+        else if (stdout instanceof FileSink)
+            out = ((FileSink) stdout).getChannel();
+        else
+            out = Channels.newChannel(stdout);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ)) {
+            long position = 0, size = in.size();
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0)
+                    break;
+                position += n;
+            }
+            return position;
+        }
+    }
+
+    /*
+     * Runs every stage at the same time, each on its own thread except the last
+     * which runs on the caller's. Stages are joined by bounded pipes so a fast
+     * producer blocks until its consumer catches up.
+     */
+    Execution pipe(Parser.Stage[] stages, InputStream stdin, OutputStream stdout) {
+        final int pipe_size = 64 * 1024;
+        Thread[] workers = new Thread[stages.length - 1];
+        InputStream in = stdin;
+        for (int i = 0; i < workers.length; ++i) {
+            final Parser.Stage stage = stages[i];
+            final InputStream source = in;
+            final PipedInputStream next = new PipedInputStream(pipe_size);
+            final PipedOutputStream sink;
+            try {
+                sink = new PipedOutputStream(next) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        super.write(b, off, len);
+                        // Wake the reader now rather than on its next poll
+                        flush();
+                    }
+                };
+            } catch (IOException e) {
+                Execution exec = new Execution();
+                exec.exit_code = Execution.ExitCode.ERROR;
+                return exec;
+            }
+            workers[i] = new Thread(() -> {
+                try {
+                    execute(stage, source, sink);
+                } finally {
+                    // Signal end of stream downstream and stop anyone writing to us
+                    closeQuietly(sink);
+                    if (source != stdin)
+                        closeQuietly(source);
+                }
+            }, "pipe-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+            in = next;
+        }
+        Execution exec = execute(stages[stages.length - 1], in, stdout);
+        closeQuietly(in);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return exec;
+    }
+
+    static void closeQuietly(Closeable c) {
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    /*
+     * Runs stage with its output going straight into the redirect target,
+     * which is opened, and truncated unless appending, before the command
+     * starts, as other shells do.
+     */
+    Execution redirect(Parser.Stage stage, InputStream stdin) {
+        Path file = Paths.get(expandPath(stage.redirect));
+        Execution e = null;
+        try (FileSink sink = new FileSink(file, stage.append, 64 * 1024)) {
+            e = this.command(stage, stdin, sink);
         } catch (IOException e1) {
+            if (e == null)
+                e = new Execution();
             e.exit_code = Execution.ExitCode.READ_WRITE_ERROR;
+            e.output = "Can't write to " + stage.redirect + "\n";
+        } finally {
+            cache.invalidate(file);
         }
         return e;
     }
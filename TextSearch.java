@@ -0,0 +1,311 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * A grep pattern compiled once. Plain text is searched as bytes with
+ * Boyer-Moore-Horspool; only patterns using regex syntax go through
+ * java.util.regex. Files are memory mapped and cut into line aligned chunks
+ * searched in parallel on the common fork/join pool, a bounded number ahead
+ * of the output, which is always written in file and line order.
+ */
+public class TextSearch {
+    enum Mode {
+        LINES, COUNT, NAMES
+    };
+
+    static final int CHUNK = 8 << 20;
+    private static final String REGEX_SYNTAX = ".^$*+?()[]{}|\\";
+
+    private final String text;
+    private final byte[] literal;
+    private final int[] shift;
+    private final Pattern regex;
+    private final Mode mode;
+
+    TextSearch(String pattern, boolean fixed, Mode mode) {
+        boolean plain = fixed;
+        if (!plain) {
+            plain = true;
+            for (int i = 0; i < pattern.length() && plain; ++i)
+                plain = REGEX_SYNTAX.indexOf(pattern.charAt(i)) < 0;
+        }
+        this.text = pattern;
+        this.mode = mode;
+        if (plain) {
+            this.regex = null;
+            this.literal = pattern.getBytes();
+            this.shift = new int[256];
+            for (int i = 0; i < 256; ++i)
+                shift[i] = literal.length;
+            for (int i = 0; i < literal.length - 1; ++i)
+                shift[literal[i] & 0xff] = literal.length - 1 - i;
+        } else {
+            this.regex = Pattern.compile(pattern);
+            this.literal = null;
+            this.shift = null;
+        }
+    }
+
+    boolean matches(String line) {
+        return regex == null ? line.contains(text) : regex.matcher(line).find();
+    }
+
+    // Searches a stream line by line as it arrives, for grep at the end of a pipe
+    void search(InputStream in, OutputStream out) throws IOException {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in));
+        long count = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (!matches(line))
+                continue;
+            ++count;
+            if (mode == Mode.NAMES)
+                break;
+            if (mode == Mode.LINES)
+                out.write((line + '\n').getBytes());
+        }
+        if (mode == Mode.COUNT)
+            out.write((count + "\n").getBytes());
+        else if (mode == Mode.NAMES && count > 0)
+            out.write("(standard input)\n".getBytes());
+    }
+
+    // Searches files, labels are the names to print for them
+    void search(Path[] files, String[] labels, OutputStream out) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        final int ahead = 2 * pool.getParallelism();
+        ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+        for (int k = 0; k < files.length; ++k) {
+            String prefix = files.length > 1 ? labels[k] + ":" : "";
+            FileState state = new FileState(labels[k], prefix);
+            try (FileChannel file = FileChannel.open(files[k], StandardOpenOption.READ)) {
+                long size = file.size();
+                long start = 0;
+                // A mapping stays valid after its channel is closed
+                while (start < size && !(mode == Mode.NAMES && state.found.get())) {
+                    // Up to CHUNK bytes, cut after the last whole line in them
+                    long limit = Math.min(size, start + CHUNK);
+                    MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, start, limit - start);
+                    long end = limit;
+                    if (limit < size) {
+                        int cut = map.limit();
+                        while (cut > 0 && map.get(cut - 1) != '\n')
+                            --cut;
+                        if (cut > 0) {
+                            end = start + cut;
+                            map = map.slice(0, cut);
+                        } else {
+                            // A line longer than CHUNK, which gets a mapping of its own if one can hold it
+                            end = lineEnd(file, limit, size);
+                            if (end - start > Integer.MAX_VALUE) {
+                                while (!pending.isEmpty())
+                                    emit(pending.poll(), out);
+                                hugeLine(file, start, end, state, out);
+                                start = end;
+                                continue;
+                            }
+                            map = file.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                        }
+                    }
+                    Chunk chunk = new Chunk(map, state);
+                    pending.add(chunk);
+                    pool.execute(chunk);
+                    start = end;
+                    if (pending.size() >= ahead)
+                        emit(pending.poll(), out);
+                }
+            }
+            // Marks the end of this file's chunks, carries no work
+            Chunk last = new Chunk(null, state);
+            last.last = true;
+            pending.add(last);
+        }
+        while (!pending.isEmpty())
+            emit(pending.poll(), out);
+    }
+
+    private void emit(Chunk chunk, OutputStream out) throws IOException {
+        if (chunk.last) {
+            if (mode == Mode.COUNT)
+                out.write((chunk.state.prefix + chunk.state.count.get() + "\n").getBytes());
+            else if (mode == Mode.NAMES && chunk.state.found.get())
+                out.write((chunk.state.label + "\n").getBytes());
+            return;
+        }
+        chunk.join();
+        if (chunk.output != null)
+            chunk.output.writeTo(out);
+    }
+
+    /*
+     * Searches the one line in [start, end) when it is too long to map at once,
+     * CHUNK bytes at a time with windows overlapping by the pattern's length,
+     * after everything before it has been written. java.util.regex can't match
+     * more than Integer.MAX_VALUE chars, so only plain text is looked for here.
+     */
+    private void hugeLine(FileChannel file, long start, long end, FileState state, OutputStream out)
+            throws IOException {
+        if (regex != null)
+            throw new IOException(state.label + " has a line over 2 GB, only plain text can be searched for in it");
+        long stop = end;
+        ByteBuffer last = ByteBuffer.allocate(1);
+        if (file.read(last, end - 1) == 1 && last.get(0) == '\n')
+            --stop;
+        boolean hit = literal.length == 0;
+        for (long at = start; !hit && at < stop; at += CHUNK) {
+            long length = Math.min(stop - at, (long) CHUNK + literal.length - 1);
+            if (length < literal.length)
+                break;
+            MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, at, length);
+            hit = indexOf(window, 0, (int) length) >= 0;
+        }
+        if (!hit)
+            return;
+        state.count.incrementAndGet();
+        if (mode == Mode.NAMES) {
+            state.found.set(true);
+        } else if (mode == Mode.LINES) {
+            out.write(state.prefix.getBytes());
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (long at = start; at < stop;) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), stop - at));
+                int n = file.read(buffer, at);
+                if (n <= 0)
+                    break;
+                out.write(buffer.array(), 0, n);
+                at += n;
+            }
+            out.write('\n');
+        }
+    }
+
+    // Offset just past the first newline at or after position, or size
+    private static long lineEnd(FileChannel file, long position, long size) throws IOException {
+        if (position >= size)
+            return size;
+        ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+        long at = position - 1;
+        while (at < size) {
+            probe.clear();
+            int n = file.read(probe, at);
+            if (n <= 0)
+                break;
+            for (int i = 0; i < n; ++i) {
+                if (probe.get(i) == '\n')
+                    return at + i + 1;
+            }
+            at += n;
+        }
+        return size;
+    }
+
+    // BMH over the mapping itself, read in place with absolute gets
+    private int indexOf(MappedByteBuffer bytes, int from, int to) {
+        final int m = literal.length;
+        if (m == 0)
+            return from < to ? from : -1;
+        int i = from;
+        while (i <= to - m) {
+            int j = m - 1;
+            while (j >= 0 && bytes.get(i + j) == literal[j])
+                --j;
+            if (j < 0)
+                return i;
+            i += shift[bytes.get(i + m - 1) & 0xff];
+        }
+        return -1;
+    }
+
+    private static final class FileState {
+        final String label;
+        final String prefix;
+        final AtomicLong count = new AtomicLong();
+        final AtomicBoolean found = new AtomicBoolean();
+
+        FileState(String label, String prefix) {
+            this.label = label;
+            this.prefix = prefix;
+        }
+    };
+
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final MappedByteBuffer map;
+        private final FileState state;
+        boolean last;
+        ByteArrayOutputStream output;
+
+        Chunk(MappedByteBuffer map, FileState state) {
+            this.map = map;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            if (mode == Mode.NAMES && state.found.get())
+                return;
+            final int n = map.limit();
+            // Only a line that has to become a String or be printed is copied, into this
+            byte[] line = null;
+            long count = 0;
+            int pos = 0;
+            Matcher matcher = regex == null ? null : regex.matcher("");
+            while (pos < n) {
+                int start, end;
+                if (matcher == null) {
+                    int hit = indexOf(map, pos, n);
+                    if (hit < 0)
+                        break;
+                    start = hit;
+                    while (start > pos && map.get(start - 1) != '\n')
+                        --start;
+                    end = hit;
+                } else {
+                    start = pos;
+                    end = pos;
+                }
+                while (end < n && map.get(end) != '\n')
+                    ++end;
+                if (matcher != null || mode == Mode.LINES) {
+                    if (line == null || line.length < end - start)
+                        line = new byte[Math.max(end - start, line == null ? 256 : 2 * line.length)];
+                    map.get(start, line, 0, end - start);
+                }
+                if (matcher != null && !matcher.reset(new String(line, 0, end - start)).find()) {
+                    pos = end + 1;
+                    continue;
+                }
+                ++count;
+                if (mode == Mode.NAMES) {
+                    state.found.set(true);
+                    break;
+                }
+                if (mode == Mode.LINES) {
+                    if (output == null)
+                        output = new ByteArrayOutputStream();
+                    output.writeBytes(state.prefix.getBytes());
+                    output.write(line, 0, end - start);
+                    output.write('\n');
+                }
+                pos = end + 1;
+            }
+            state.count.addAndGet(count);
+        }
+    };
+}
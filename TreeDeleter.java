@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Deletes a tree bottom up on TreeWalker's pool. Each directory is listed and
+ * closed, its files are deleted in batches and its subdirectories as tasks of
+ * their own, all at once, and the directory itself goes when they are done.
+ * Symbolic links are deleted, never followed. A directory keeping something
+ * that couldn't be deleted is left in place, so only the entries that actually
+ * failed are reported.
+ */
+public class TreeDeleter {
+    static final int BATCH = 256;
+
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+
+    // Deletes root and everything under it; true if it is all gone
+    boolean delete(Path root) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            errors.add(root + ": " + reason(e));
+            return false;
+        }
+        if (!attrs.isDirectory())
+            return TreeWalker.pool.invoke(new Leaves(Collections.singletonList(root)));
+        return TreeWalker.pool.invoke(new Directory(root));
+    }
+
+    long files() {
+        return files.sum();
+    }
+
+    long directories() {
+        return directories.sum();
+    }
+
+    // What couldn't be deleted and why, in no particular order
+    List<String> errors() {
+        return new ArrayList<String>(errors);
+    }
+
+    // The OS's words for e where it gave them, else the kind of failure
+    static String reason(IOException e) {
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null)
+            return ((FileSystemException) e).getReason();
+        String name = e.getClass().getSimpleName();
+        return name.endsWith("Exception") ? name.substring(0, name.length() - "Exception".length()) : name;
+    }
+
+    private final class Leaves extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> paths;
+
+        Leaves(List<Path> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        protected Boolean compute() {
+            boolean clean = true;
+            for (Path p : paths) {
+                try {
+                    Files.delete(p);
+                    files.increment();
+                } catch (IOException e) {
+                    errors.add(p + ": " + reason(e));
+                    clean = false;
+                }
+            }
+            return clean;
+        }
+    };
+
+    private final class Directory extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        Directory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Boolean compute() {
+            ArrayList<Path> leaves = new ArrayList<Path>();
+            ArrayList<ForkJoinTask<Boolean>> tasks = new ArrayList<ForkJoinTask<Boolean>>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    boolean directory;
+                    try {
+                        directory = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)
+                                .isDirectory();
+                    } catch (IOException e) {
+                        // Deleting it will say what is wrong, if anything still is
+                        directory = false;
+                    }
+                    if (directory)
+                        tasks.add(new Directory(entry));
+                    else
+                        leaves.add(entry);
+                }
+            } catch (IOException e) {
+                errors.add(dir + ": " + reason(e));
+                return false;
+            } catch (DirectoryIteratorException e) {
+                errors.add(dir + ": " + reason(e.getCause()));
+                return false;
+            }
+            for (int i = 0; i < leaves.size(); i += BATCH)
+                tasks.add(new Leaves(leaves.subList(i, Math.min(leaves.size(), i + BATCH))));
+            boolean clean = true;
+            for (ForkJoinTask<Boolean> task : invokeAll(tasks))
+                clean &= task.join();
+            if (!clean)
+                return false;
+            try {
+                Files.delete(dir);
+                directories.increment();
+                return true;
+            } catch (IOException e) {
+                errors.add(dir + ": " + reason(e));
+                return false;
+            }
+        }
+    };
+}
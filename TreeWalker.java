@@ -0,0 +1,188 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Walks a directory tree on a shared work stealing pool, one task per
+ * directory. A directory is listed and closed before its subdirectories are
+ * forked, and a semaphore caps how many are open at once, so descriptors and
+ * memory stay bounded however wide the tree is. Symbolic links are reported
+ * but not followed unless asked for.
+ */
+public class TreeWalker {
+    interface Visitor {
+        // Called for each entry below the root from many threads; false skips a directory's contents
+        boolean visit(Path path, BasicFileAttributes attrs, int depth);
+
+        // Called once everything under dir is done, with the bytes of regular files in it
+        default void leave(Path dir, long bytes, int depth) {
+        }
+    }
+
+    static final ForkJoinPool pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private final boolean followLinks;
+    private final Semaphore open;
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+    private final ConcurrentHashMap<Object, Boolean> seen = new ConcurrentHashMap<Object, Boolean>();
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(4096);
+    private volatile boolean stopped = false;
+
+    TreeWalker(boolean followLinks, int maxOpen) {
+        this.followLinks = followLinks;
+        this.open = new Semaphore(maxOpen);
+    }
+
+    // Walks everything below root and returns the bytes of regular files found
+    long walk(Path root, Visitor visitor) {
+        if (followLinks) {
+            // So a link back to root isn't walked once more
+            try {
+                Object key = Files.readAttributes(root, BasicFileAttributes.class).fileKey();
+                if (key != null)
+                    seen.put(key, Boolean.TRUE);
+            } catch (IOException e) {
+                // Listing it will fail and say why
+            }
+        }
+        return pool.invoke(new Directory(root, visitor, 0));
+    }
+
+    /*
+     * Walks on the pool while the calling thread writes every line passed to
+     * emit() into out, so output never leaves the command's own thread. The
+     * queue between them is bounded, and a failing out stops the walk.
+     */
+    long walk(Path root, Visitor visitor, OutputStream out) throws IOException {
+        ForkJoinTask<Long> task = pool.submit(() -> walk(root, visitor));
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        IOException failure = null;
+        try {
+            while (true) {
+                String line = lines.poll(20, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    if (task.isDone() && lines.isEmpty())
+                        break;
+                    continue;
+                }
+                if (failure == null) {
+                    try {
+                        buffered.write((line + '\n').getBytes());
+                    } catch (IOException e) {
+                        failure = e;
+                        stopped = true;
+                    }
+                }
+            }
+            if (failure == null)
+                buffered.flush();
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        }
+        long bytes = task.join();
+        if (failure != null)
+            throw failure;
+        return bytes;
+    }
+
+    // Queues a line of output for walk(root, visitor, out); blocks while the queue is full
+    void emit(String line) {
+        try {
+            while (!stopped && !lines.offer(line, 20, TimeUnit.MILLISECONDS))
+                ;
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Entries that couldn't be read, in no particular order
+    List<String> errors() {
+        return Collections.unmodifiableList(new ArrayList<String>(errors));
+    }
+
+    private BasicFileAttributes attributes(Path p) throws IOException {
+        if (followLinks) {
+            try {
+                return Files.readAttributes(p, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Dangling link, report the link itself
+            }
+        }
+        return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private final class Directory extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Visitor visitor;
+        private final int depth;
+
+        Directory(Path dir, Visitor visitor, int depth) {
+            this.dir = dir;
+            this.visitor = visitor;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Long compute() {
+            long bytes = 0;
+            ArrayList<Directory> children = new ArrayList<Directory>();
+            try {
+                open.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0L;
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (stopped)
+                        break;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = attributes(entry);
+                    } catch (IOException e) {
+                        errors.add(entry + ": " + e.getMessage());
+                        continue;
+                    }
+                    if (attrs.isRegularFile())
+                        bytes += attrs.size();
+                    boolean descend = visitor.visit(entry, attrs, depth + 1);
+                    if (descend && attrs.isDirectory()) {
+                        // Following links can lead back up the tree
+                        Object key = attrs.fileKey();
+                        if (!followLinks || key == null || seen.putIfAbsent(key, Boolean.TRUE) == null)
+                            children.add(new Directory(entry, visitor, depth + 1));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                errors.add(dir + ": " + e.getMessage());
+            } finally {
+                open.release();
+            }
+            for (Directory child : invokeAll(children))
+                bytes += child.join();
+            visitor.leave(dir, bytes, depth);
+            return bytes;
+        }
+    };
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * cat, cp, redirection and a two stage pipe over a text file of the given
+ * size in bytes, from 1 KB to 1 GB. Output that isn't redirected is thrown
+ * away. The file is written once per trial in a temp directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileBenchmark {
+    @Param({ "1024", "1048576", "67108864", "1073741824" })
+    long size;
+
+    Shell shell;
+    Path dir;
+    String src;
+    String dst;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("shell-bench");
+        Path file = dir.resolve("src.txt");
+        Random random = new Random(42);
+        char[] line = new char[80];
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            for (long written = 0; written < size; written += line.length) {
+                int n = (int) Math.min(line.length, size - written);
+                for (int i = 0; i < n - 1; ++i)
+                    line[i] = (char) ('a' + random.nextInt(26));
+                line[n - 1] = '\n';
+                out.write(line, 0, n);
+            }
+        }
+        src = file.toString();
+        dst = dir.resolve("dst.txt").toString();
+        shell = new Shell();
+        shell.check("cat " + src);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object cat() {
+        return shell.run("cat " + src, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Object cp() {
+        return shell.run("cp " + src + " " + dst, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Object redirect() {
+        return shell.run("cat " + src + " > " + dst, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Object pipe() {
+        return shell.run("cat " + src + " | grep -c zzz", OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ls over a directory of the given number of empty files, from 10 to a
+ * million. Creating the largest takes a while and is done once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({ "10", "1000", "100000", "1000000" })
+    int entries;
+
+    Shell shell;
+    Path dir;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("shell-bench");
+        for (int i = 0; i < entries; ++i)
+            Files.createFile(dir.resolve("f" + i));
+        shell = new Shell();
+        shell.check("cd " + dir);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object ls() {
+        return shell.run("ls", OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Object sorted() {
+        return shell.run("ls -s", OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Object longFormat() {
+        return shell.run("ls -l", OutputStream.nullOutputStream());
+    }
+}
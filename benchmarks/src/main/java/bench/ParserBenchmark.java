@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Parser.parse over lines of a given length holding a given number of
+ * operators: all "|" but the last, which is a ">" redirect. cached parses the
+ * same line again, as a shell re-running a command does; fresh tokenizes it
+ * with a new parser each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({ "16", "256", "4096" })
+    int lineLength;
+
+    @Param({ "0", "1", "4", "16" })
+    int operators;
+
+    String line;
+    Object parser;
+
+    @Setup
+    public void setup() {
+        StringBuilder b = new StringBuilder();
+        int stages = operators + 1;
+        int per = Math.max(8, lineLength / stages);
+        for (int s = 0; s < stages; ++s) {
+            if (s > 0)
+                b.append(s == stages - 1 && operators > 0 ? " > " : " | ");
+            int start = b.length();
+            b.append(s == stages - 1 && operators > 0 ? "out.txt" : "grep");
+            // Pad with words, a quoted one among them
+            for (int w = 0; b.length() - start < per; ++w)
+                b.append(w % 4 == 3 ? " \"a b\"" : " word" + w);
+        }
+        line = b.toString();
+        parser = Shell.newParser();
+        if (Shell.parse(parser, line) == null)
+            throw new IllegalStateException("Doesn't parse: " + line);
+    }
+
+    @Benchmark
+    public Object cached() {
+        return Shell.parse(parser, line);
+    }
+
+    @Benchmark
+    public Object fresh() {
+        return Shell.parse(Shell.newParser(), line);
+    }
+}
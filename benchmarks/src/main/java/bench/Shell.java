@@ -0,0 +1,100 @@
+package bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/*
+ * The shell's classes live in the unnamed package, which code in a named
+ * package such as these benchmarks can't refer to, so they are reached through
+ * method handles looked up once. A call through a constant handle costs about
+ * the same as a direct one.
+ */
+final class Shell {
+    private static final MethodHandle NEW_TERMINAL;
+    private static final MethodHandle SET_INTERACTIVE;
+    private static final MethodHandle RUN;
+    private static final MethodHandle NEW_PARSER;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle EXIT_CODE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> terminal = Class.forName("Terminal");
+            Class<?> parser = Class.forName("Parser");
+            Class<?> execution = Class.forName("Terminal$Execution");
+            NEW_TERMINAL = lookup.unreflectConstructor(accessible(terminal.getDeclaredConstructor()));
+            SET_INTERACTIVE = lookup.unreflect(accessible(terminal.getDeclaredMethod("setInteractive", boolean.class)));
+            RUN = lookup.unreflect(accessible(terminal.getDeclaredMethod("run", String.class, InputStream.class,
+                    OutputStream.class)));
+            NEW_PARSER = lookup.unreflectConstructor(accessible(parser.getDeclaredConstructor()));
+            PARSE = lookup.unreflect(accessible(parser.getDeclaredMethod("parse", CharSequence.class)));
+            EXIT_CODE = lookup.unreflectGetter(accessible(execution.getDeclaredField("exit_code")));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    private final Object terminal;
+
+    // A Terminal that never stops to ask the user anything
+    Shell() {
+        try {
+            terminal = NEW_TERMINAL.invoke();
+            SET_INTERACTIVE.invoke(terminal, false);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Terminal.run with no stdin; returns the Execution
+    Object run(String cmd, OutputStream stdout) {
+        try {
+            return RUN.invoke(terminal, cmd, (InputStream) null, stdout);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Runs cmd and fails unless it succeeded, for checking a benchmark's setup
+    void check(String cmd) {
+        Object exec = run(cmd, OutputStream.nullOutputStream());
+        String code = exec == null ? "exit" : exitCode(exec);
+        if (!code.equals("SUCCESS"))
+            throw new IllegalStateException(cmd + " failed: " + code);
+    }
+
+    static String exitCode(Object exec) {
+        try {
+            return String.valueOf(EXIT_CODE.invoke(exec));
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object newParser() {
+        try {
+            return NEW_PARSER.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object parse(Object parser, CharSequence input) {
+        try {
+            return PARSE.invoke(parser, input);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Files whose lines don't fit the mapped chunks grep searches in: longer than
+ * a chunk, and longer than any one mapping can be.
+ */
+class TextSearchTest {
+    @TempDir
+    Path dir;
+
+    private static String grep(String pattern, TextSearch.Mode mode, Path file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextSearch(pattern, false, mode).search(new Path[] { file }, new String[] { "f" }, out);
+        return out.toString();
+    }
+
+    // A sparse file of zeros, with text written at offset
+    private Path sparse(long size, long offset, String text) throws IOException {
+        Path file = dir.resolve("zero.img");
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+            f.setLength(size);
+            if (text != null) {
+                f.seek(offset);
+                f.write(text.getBytes());
+            }
+        }
+        return file;
+    }
+
+    @Test
+    void lineLongerThanChunk() throws IOException {
+        Path file = dir.resolve("long.txt");
+        StringBuilder text = new StringBuilder("a foo\n");
+        text.append("x".repeat(3 * TextSearch.CHUNK)).append("foo\n");
+        text.append("b\nc foo\n");
+        Files.writeString(file, text);
+        assertEquals("3\n", grep("foo", TextSearch.Mode.COUNT, file));
+        assertEquals("3\n", grep("fo+", TextSearch.Mode.COUNT, file));
+        assertEquals("c foo\n", grep("c fo", TextSearch.Mode.LINES, file));
+    }
+
+    @Test
+    void largeFileWithoutNewlines() throws IOException {
+        long size = 3L << 30;
+        Path file = sparse(size, size - 100, "xxfoo");
+        assertEquals("1\n", grep("foo", TextSearch.Mode.COUNT, file));
+        assertEquals("0\n", grep("bar", TextSearch.Mode.COUNT, file));
+        assertEquals("f\n", grep("foo", TextSearch.Mode.NAMES, file));
+        // The shell reports this as an error instead of dying
+        assertThrows(IOException.class, () -> grep("fo+", TextSearch.Mode.COUNT, file));
+    }
+}